@@ -0,0 +1,304 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes files atomically. Bytes are written to a temp file next to the target,
+ * then the temp file is renamed to the target. Readers see either
+ * the old content or the new content, never a partial one.
+ * <p>
+ * Renaming replaces the target atomically on POSIX file systems.
+ * On Windows the target is deleted before renaming, so it could be missing
+ * for a short time.
+ * <p>
+ * With {@code sync}, the temp file is flushed to the storage device before renaming,
+ * and the parent directory is flushed after renaming if the platform can
+ * open directories ({@code java.nio.file}, Java 7 or Android 8.0).
+ * Otherwise the rename itself might not survive a power loss,
+ * but the target never has partial content.
+ *
+ * @see GroupCommit
+ */
+public final class AtomicFile {
+  private AtomicFile() {}
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * Opens an output to write {@code file} atomically.
+   * The parent directory is created if necessary.
+   * Call {@link Output#commit(boolean)} to replace the file,
+   * or {@link Output#close()} to discard the bytes.
+   *
+   * @param file the file to write
+   * @return the output
+   * @throws IOException if the temp file can't be created
+   */
+  public static Output openWrite(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (!FileUtils.ensureDir(dir)) {
+      throw new IOException("Can't create directory: " + dir);
+    }
+    // Prefix must be at least three characters long
+    String prefix = "." + file.getName() + ".";
+    File tempFile = File.createTempFile(prefix, TEMP_SUFFIX, dir);
+    FileOutputStream os;
+    try {
+      os = new FileOutputStream(tempFile);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+    return new Output(file, tempFile, os);
+  }
+
+  /**
+   * Writes {@code bytes} to {@code file} atomically.
+   *
+   * @param file the file to write
+   * @param bytes the bytes to write
+   * @param sync {@code true} to flush the bytes to the storage device
+   * @throws IOException if an I/O error occurs, {@code file} is unchanged
+   */
+  public static void write(File file, byte[] bytes, boolean sync) throws IOException {
+    Output output = openWrite(file);
+    try {
+      output.write(bytes);
+      output.commit(sync);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Copies all bytes of {@code is} to {@code file} atomically.
+   * {@code is} isn't closed.
+   *
+   * @param file the file to write
+   * @param is the {@code InputStream} to read
+   * @param sync {@code true} to flush the bytes to the storage device
+   * @throws IOException if an I/O error occurs, {@code file} is unchanged
+   */
+  public static void write(File file, InputStream is, boolean sync) throws IOException {
+    Output output = openWrite(file);
+    try {
+      IOUtils.copy(is, output.os);
+      output.commit(sync);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Renames {@code from} to {@code to}, replaces {@code to} if it exists.
+   */
+  static void rename(File from, File to) throws IOException {
+    if (from.renameTo(to)) return;
+    // Windows can't rename to an existing file
+    if (to.delete() && from.renameTo(to)) return;
+    throw new IOException("Can't rename " + from + " to " + to);
+  }
+
+  /**
+   * Flushes {@code file} to the storage device.
+   */
+  static void sync(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.getFD().sync();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Flushes the entries of directory {@code dir} to the storage device.
+   * Java 6 can't open a directory, so {@code java.nio.file} is used by reflection.
+   *
+   * @return {@code false} if the platform can't flush directories
+   */
+  static boolean syncDirectory(File dir) {
+    Method open = DirectorySyncer.OPEN;
+    if (open == null) return false;
+    try {
+      Object path = DirectorySyncer.TO_PATH.invoke(dir);
+      FileChannel channel = (FileChannel) open.invoke(null, path, DirectorySyncer.OPTIONS);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+      return true;
+    } catch (Throwable e) {
+      // Some file systems or platforms don't support it
+      return false;
+    }
+  }
+
+  private static final class DirectorySyncer {
+
+    static final Method TO_PATH;
+    static final Method OPEN;
+    static final Object OPTIONS;
+
+    static {
+      Method toPath = null;
+      Method open = null;
+      Object options = null;
+      try {
+        toPath = File.class.getMethod("toPath");
+        Class<?> pathClass = Class.forName("java.nio.file.Path");
+        Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+        Class<?> standardOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+        options = Array.newInstance(optionClass, 1);
+        Array.set(options, 0, standardOptionClass.getField("READ").get(null));
+        open = FileChannel.class.getMethod("open", pathClass, options.getClass());
+      } catch (Throwable e) {
+        open = null;
+      }
+      TO_PATH = toPath;
+      OPEN = open;
+      OPTIONS = options;
+    }
+  }
+
+  /**
+   * An {@code OutputStream} to the temp file of an atomic write.
+   * It's not thread-safe.
+   */
+  public static final class Output extends OutputStream {
+
+    private final File file;
+    private final File tempFile;
+    private final FileOutputStream os;
+
+    private boolean closed;
+    private boolean committed;
+
+    Output(File file, File tempFile, FileOutputStream os) {
+      this.file = file;
+      this.tempFile = tempFile;
+      this.os = os;
+    }
+
+    /**
+     * Returns the file to write.
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * Returns the temp file.
+     */
+    public File getTempFile() {
+      return tempFile;
+    }
+
+    private void checkOpen() throws IOException {
+      if (closed) throw new IOException("Output is closed");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      checkOpen();
+      os.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      checkOpen();
+      os.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      checkOpen();
+      os.flush();
+    }
+
+    /**
+     * Closes the temp file and renames it to the file.
+     *
+     * @param sync {@code true} to flush the bytes and the rename to the storage device
+     * @throws IOException if an I/O error occurs, the file is unchanged
+     * and the temp file is deleted
+     */
+    public void commit(boolean sync) throws IOException {
+      finish(sync);
+      try {
+        rename(tempFile, file);
+      } catch (IOException e) {
+        tempFile.delete();
+        throw e;
+      }
+      committed = true;
+      if (sync) {
+        syncDirectory(tempFile.getParentFile());
+      }
+    }
+
+    /**
+     * Closes the temp file, leaves renaming to the caller.
+     */
+    void finish(boolean sync) throws IOException {
+      checkOpen();
+      closed = true;
+      try {
+        if (sync) {
+          os.getFD().sync();
+        }
+        os.close();
+      } catch (IOException e) {
+        IOUtils.closeQuietly(os);
+        tempFile.delete();
+        throw e;
+      }
+    }
+
+    /**
+     * Hands the temp file over, {@link #close()} doesn't delete it anymore.
+     */
+    void markCommitted() {
+      committed = true;
+    }
+
+    /**
+     * Discards the bytes and deletes the temp file, if not committed.
+     */
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        IOUtils.closeQuietly(os);
+      }
+      if (!committed) {
+        tempFile.delete();
+      }
+    }
+  }
+}
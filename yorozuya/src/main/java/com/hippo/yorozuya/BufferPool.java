@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of {@code byte[]} buffers.
+ * <p>
+ * Buffers are grouped into size classes, every size class is a power of 2
+ * between {@link #MIN_BUFFER_SIZE} and the max buffer size of the pool.
+ * Released buffers are kept in a small per-thread cache first,
+ * then in a bounded lock-free cache shared by all threads.
+ * Buffers larger than the max buffer size are never pooled.
+ * <p>
+ * Buffers returned by {@link #acquire(int)} are not cleared.
+ */
+public final class BufferPool {
+
+  /**
+   * The smallest size class.
+   */
+  public static final int MIN_BUFFER_SIZE = 1024;
+
+  private static final int MAX_SIZE_CLASS = 1 << 30;
+  private static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 64;
+  private static final int DEFAULT_THREAD_CACHE_SIZE = 4;
+  private static final int DEFAULT_SHARED_CACHE_SIZE = 32;
+
+  private final int maxBufferSize;
+  private final int threadCacheSize;
+  private final int sharedCacheSize;
+
+  private final ConcurrentLinkedQueue<byte[]>[] sharedCaches;
+  private final AtomicInteger[] sharedCacheCounts;
+  private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+    @Override
+    protected ThreadCache initialValue() {
+      return new ThreadCache(sharedCaches.length, threadCacheSize);
+    }
+  };
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a pool with 64 KiB max buffer size, 4 buffers per size class
+   * per thread and 32 buffers per size class shared.
+   */
+  public BufferPool() {
+    this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_THREAD_CACHE_SIZE, DEFAULT_SHARED_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxBufferSize the largest size class, rounded up to a power of 2,
+   *                      clamped between {@link #MIN_BUFFER_SIZE} and {@code 1 << 30}
+   * @param threadCacheSize the max number of buffers per size class cached by each thread
+   * @param sharedCacheSize the max number of buffers per size class shared by all threads
+   * @throws IllegalArgumentException if any argument is negative
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(int maxBufferSize, int threadCacheSize, int sharedCacheSize) {
+    if (maxBufferSize < 0 || threadCacheSize < 0 || sharedCacheSize < 0) {
+      throw new IllegalArgumentException("Negative argument: " + maxBufferSize + ", "
+          + threadCacheSize + ", " + sharedCacheSize);
+    }
+    this.maxBufferSize = MathUtils.nextPow2(
+        MathUtils.clamp(maxBufferSize, MIN_BUFFER_SIZE, MAX_SIZE_CLASS));
+    this.threadCacheSize = threadCacheSize;
+    this.sharedCacheSize = sharedCacheSize;
+
+    int classCount = sizeClass(this.maxBufferSize) + 1;
+    sharedCaches = new ConcurrentLinkedQueue[classCount];
+    sharedCacheCounts = new AtomicInteger[classCount];
+    for (int i = 0; i < classCount; i++) {
+      sharedCaches[i] = new ConcurrentLinkedQueue<byte[]>();
+      sharedCacheCounts[i] = new AtomicInteger();
+    }
+  }
+
+  private static int sizeClass(int size) {
+    return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+  }
+
+  /**
+   * Returns the largest size class of this pool.
+   */
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  /**
+   * Returns a buffer which length is at least {@code size}.
+   * The length is the size class of {@code size} if {@code size}
+   * isn't larger than the max buffer size, otherwise {@code size}.
+   *
+   * @param size the min length of the buffer
+   * @return the buffer
+   * @throws IllegalArgumentException if {@code size} is negative
+   */
+  public byte[] acquire(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Negative size: " + size);
+    }
+    if (size > maxBufferSize) {
+      missCount.incrementAndGet();
+      return new byte[size];
+    }
+
+    int bufferSize = Math.max(MathUtils.nextPow2(size), MIN_BUFFER_SIZE);
+    int sizeClass = sizeClass(bufferSize);
+
+    byte[] buffer = threadCache.get().poll(sizeClass);
+    if (buffer == null) {
+      buffer = sharedCaches[sizeClass].poll();
+      if (buffer != null) {
+        sharedCacheCounts[sizeClass].decrementAndGet();
+      }
+    }
+
+    if (buffer != null) {
+      hitCount.incrementAndGet();
+      return buffer;
+    } else {
+      missCount.incrementAndGet();
+      return new byte[bufferSize];
+    }
+  }
+
+  /**
+   * Puts {@code buffer} back to the pool. The buffer must not be used after that.
+   * Buffers which length is not a size class of this pool are ignored.
+   *
+   * @param buffer the buffer to release, may be null
+   */
+  public void release(byte[] buffer) {
+    if (buffer == null) return;
+    int length = buffer.length;
+    if (length < MIN_BUFFER_SIZE || length > maxBufferSize || !MathUtils.pow2(length)) return;
+
+    int sizeClass = sizeClass(length);
+    if (threadCache.get().offer(sizeClass, buffer)) return;
+
+    AtomicInteger count = sharedCacheCounts[sizeClass];
+    if (count.incrementAndGet() <= sharedCacheSize) {
+      sharedCaches[sizeClass].offer(buffer);
+    } else {
+      count.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the number of {@link #acquire(int)} calls served by a cached buffer.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of {@link #acquire(int)} calls which allocated a new buffer.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Drops all buffers in the shared cache and the cache of the current thread.
+   * Caches of other threads are dropped when the threads die.
+   */
+  public void clear() {
+    threadCache.remove();
+    for (int i = 0; i < sharedCaches.length; i++) {
+      while (sharedCaches[i].poll() != null) {
+        sharedCacheCounts[i].decrementAndGet();
+      }
+    }
+  }
+
+  private static final class ThreadCache {
+
+    private final byte[][][] buffers;
+    private final int[] counts;
+
+    ThreadCache(int classCount, int size) {
+      buffers = new byte[classCount][size][];
+      counts = new int[classCount];
+    }
+
+    byte[] poll(int sizeClass) {
+      int count = counts[sizeClass];
+      if (count == 0) return null;
+      byte[][] stack = buffers[sizeClass];
+      byte[] buffer = stack[--count];
+      stack[count] = null;
+      counts[sizeClass] = count;
+      return buffer;
+    }
+
+    boolean offer(int sizeClass, byte[] buffer) {
+      byte[][] stack = buffers[sizeClass];
+      int count = counts[sizeClass];
+      if (count == stack.length) return false;
+      stack[count] = buffer;
+      counts[sizeClass] = count + 1;
+      return true;
+    }
+  }
+}
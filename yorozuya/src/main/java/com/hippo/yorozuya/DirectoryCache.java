@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU set of paths known to be directories.
+ * Paths are absolute paths, they are not canonicalized.
+ * <p>
+ * Lookups don't lock. If the cache is full, the least recently used quarter
+ * of the paths is evicted. Recency is approximate, paths found since the last add
+ * count as equally recent.
+ * <p>
+ * Invalidating a path also invalidates all paths under it.
+ * A path checked before an invalidation isn't added after it,
+ * see {@link #generation()}.
+ */
+final class DirectoryCache {
+
+  private static final char END = (char) (File.separatorChar + 1);
+
+  private final int maxSize;
+  private final ConcurrentHashMap<String, Entry> paths = new ConcurrentHashMap<String, Entry>();
+  private final AtomicLong clock = new AtomicLong();
+  // Sorted copy of the paths, to find all paths under a path, guarded by this
+  private final TreeSet<String> sortedPaths = new TreeSet<String>();
+  private volatile long generation;
+
+  DirectoryCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  int size() {
+    return paths.size();
+  }
+
+  /**
+   * Returns {@code true} if {@code file} is known to be a directory.
+   */
+  boolean contains(File file) {
+    Entry entry = paths.get(file.getAbsolutePath());
+    if (entry == null) return false;
+    entry.lastAccess = clock.get();
+    return true;
+  }
+
+  /**
+   * Returns the current generation. It changes on every invalidation.
+   */
+  long generation() {
+    return generation;
+  }
+
+  /**
+   * Remembers {@code file} as a directory if there is no invalidation
+   * since {@code generation}.
+   */
+  synchronized void add(File file, long generation) {
+    if (this.generation != generation) return;
+    String path = file.getAbsolutePath();
+    Entry entry = paths.get(path);
+    if (entry != null) {
+      entry.lastAccess = clock.get();
+      return;
+    }
+    // Paths found after it get a later access
+    paths.put(path, new Entry(clock.getAndIncrement()));
+    sortedPaths.add(path);
+    if (paths.size() > maxSize) {
+      evict();
+    }
+  }
+
+  private void evict() {
+    // Evict a quarter at once, so the scan is amortised over many adds
+    int target = maxSize - maxSize / 4;
+    while (paths.size() > maxSize) {
+      long[] accesses = new long[paths.size()];
+      int count = 0;
+      for (Entry entry : paths.values()) {
+        accesses[count++] = entry.lastAccess;
+      }
+      Arrays.sort(accesses);
+      // Paths found meanwhile are newer than it and kept
+      long threshold = accesses[count - target - 1];
+      Iterator<Map.Entry<String, Entry>> iterator = paths.entrySet().iterator();
+      while (iterator.hasNext() && paths.size() > target) {
+        Map.Entry<String, Entry> e = iterator.next();
+        if (e.getValue().lastAccess <= threshold) {
+          iterator.remove();
+          sortedPaths.remove(e.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Forgets {@code file} and all paths under it.
+   */
+  synchronized void invalidate(File file) {
+    generation++;
+    String path = file.getAbsolutePath();
+    if (paths.remove(path) != null) {
+      sortedPaths.remove(path);
+    }
+    removeChildren(path);
+  }
+
+  /**
+   * Forgets all paths under {@code file}, keeps {@code file}.
+   */
+  synchronized void invalidateChildren(File file) {
+    generation++;
+    removeChildren(file.getAbsolutePath());
+  }
+
+  private void removeChildren(String path) {
+    if (sortedPaths.isEmpty()) return;
+    String from = path.charAt(path.length() - 1) == File.separatorChar
+        ? path : path + File.separatorChar;
+    String to = from.substring(0, from.length() - 1) + END;
+    Iterator<String> iterator = sortedPaths.subSet(from, false, to, false).iterator();
+    while (iterator.hasNext()) {
+      paths.remove(iterator.next());
+      iterator.remove();
+    }
+  }
+
+  synchronized void clear() {
+    generation++;
+    paths.clear();
+    sortedPaths.clear();
+  }
+
+  private static final class Entry {
+
+    volatile long lastAccess;
+
+    Entry(long lastAccess) {
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory copy of a directory tree. Queries never touch the file system.
+ * <p>
+ * The snapshot is updated by {@link #update()}. Changed paths reported by
+ * {@link #notifyChanged(File)}, for example from a file observer,
+ * are scanned again. If too many paths are reported before an update,
+ * or nothing tells it what changed, the whole tree is scanned again,
+ * see {@link #rescan()}. Listeners are told about every change found.
+ * <pre>{@code
+ * final DirectorySnapshot snapshot = DirectorySnapshot.create(dir, 1024);
+ * scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+ *   public void run() { snapshot.update(); }
+ * }, 1, 1, TimeUnit.SECONDS);
+ * }</pre>
+ * Changes of the last modified time of directories are ignored.
+ * Symbolic links are followed, but loops aren't entered.
+ * <p>
+ * It's thread-safe.
+ */
+public final class DirectorySnapshot {
+
+  /**
+   * A file or directory is created.
+   */
+  public static final int CREATED = 0;
+  /**
+   * The length or the last modified time of a file is changed.
+   */
+  public static final int MODIFIED = 1;
+  /**
+   * A file or directory is deleted.
+   */
+  public static final int DELETED = 2;
+
+  /**
+   * Receives changes of a snapshot.
+   */
+  public interface Listener {
+
+    /**
+     * Called after the snapshot is changed, on the thread which updates it.
+     *
+     * @param file the file or directory
+     * @param change {@link #CREATED}, {@link #MODIFIED} or {@link #DELETED}
+     */
+    void onChange(File file, int change);
+  }
+
+  private static final class Entry {
+
+    final boolean isDirectory;
+    final long length;
+    final long lastModified;
+    // Child names, only for directories
+    final TreeSet<String> children;
+
+    Entry(boolean isDirectory, long length, long lastModified) {
+      this.isDirectory = isDirectory;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.children = isDirectory ? new TreeSet<String>() : null;
+    }
+  }
+
+  private static final class Change {
+
+    final String path;
+    final int change;
+
+    Change(String path, int change) {
+      this.path = path;
+      this.change = change;
+    }
+  }
+
+  private final File root;
+  private final String rootPath;
+  private final int maxPending;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // Relative path with '/' to entry, the root is ""
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private long totalSize;
+  private long fileCount;
+
+  private final Object pendingLock = new Object();
+  private Set<String> pending = new LinkedHashSet<String>();
+  private boolean overflow;
+
+  // Only one update at a time
+  private final Object updateLock = new Object();
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private DirectorySnapshot(File root, int maxPending) {
+    this.root = root;
+    this.rootPath = root.getAbsolutePath();
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Scans {@code root} and creates a snapshot of it.
+   *
+   * @param root the root directory
+   * @param maxPending the max number of paths from {@link #notifyChanged(File)}
+   *                   kept for the next update, a full rescan is done if exceeded
+   * @throws IllegalArgumentException if {@code maxPending} isn't positive
+   */
+  public static DirectorySnapshot create(File root, int maxPending) {
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException("maxPending <= 0: " + maxPending);
+    }
+    DirectorySnapshot snapshot = new DirectorySnapshot(root, maxPending);
+    snapshot.rescan();
+    return snapshot;
+  }
+
+  /**
+   * Returns the root directory.
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Returns the relative path of {@code file} with {@code '/'},
+   * or {@code null} if it isn't in the tree.
+   */
+  private String relativePath(File file) {
+    String path = file.getAbsolutePath();
+    if (path.equals(rootPath)) return "";
+    int length = rootPath.length();
+    boolean endsWithSeparator = rootPath.charAt(length - 1) == File.separatorChar;
+    if (!path.startsWith(rootPath)) return null;
+    if (!endsWithSeparator) {
+      if (path.length() == length || path.charAt(length) != File.separatorChar) return null;
+      length++;
+    }
+    String relative = path.substring(length);
+    return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+  }
+
+  private File toFile(String path) {
+    return path.length() == 0 ? root : new File(root, path);
+  }
+
+  private static String child(String parent, String name) {
+    return parent.length() == 0 ? name : parent + '/' + name;
+  }
+
+  private static String parent(String path) {
+    int index = path.lastIndexOf('/');
+    return index == -1 ? "" : path.substring(0, index);
+  }
+
+  private static String name(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  private Entry getEntry(File file) {
+    String path = relativePath(file);
+    return path != null ? entries.get(path) : null;
+  }
+
+  /**
+   * Returns {@code true} if {@code file} exists in the snapshot.
+   */
+  public boolean exists(File file) {
+    lock.readLock().lock();
+    try {
+      return getEntry(file) != null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns {@code true} if {@code file} is a directory in the snapshot.
+   */
+  public boolean isDirectory(File file) {
+    lock.readLock().lock();
+    try {
+      Entry entry = getEntry(file);
+      return entry != null && entry.isDirectory;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the length of {@code file} in the snapshot,
+   * 0 if it doesn't exist or it's a directory.
+   */
+  public long length(File file) {
+    lock.readLock().lock();
+    try {
+      Entry entry = getEntry(file);
+      return entry != null ? entry.length : 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the last modified time of {@code file} in the snapshot, 0 if it doesn't exist.
+   */
+  public long lastModified(File file) {
+    lock.readLock().lock();
+    try {
+      Entry entry = getEntry(file);
+      return entry != null ? entry.lastModified : 0;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the sorted names of children of directory {@code dir} in the snapshot,
+   * or {@code null} if it isn't a directory.
+   */
+  public String[] list(File dir) {
+    lock.readLock().lock();
+    try {
+      Entry entry = getEntry(dir);
+      if (entry == null || !entry.isDirectory) return null;
+      return entry.children.toArray(new String[entry.children.size()]);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the total length of all files in the snapshot.
+   */
+  public long getTotalSize() {
+    lock.readLock().lock();
+    try {
+      return totalSize;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the number of files in the snapshot.
+   */
+  public long getFileCount() {
+    lock.readLock().lock();
+    try {
+      return fileCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Reports that {@code file} might be changed. It's scanned again
+   * in the next {@link #update()}, with all files under it if it's a directory.
+   * It's cheap, it could be called from any thread.
+   *
+   * @param file the changed file, ignored if it's not in the tree
+   */
+  public void notifyChanged(File file) {
+    String path = relativePath(file);
+    if (path == null) return;
+    synchronized (pendingLock) {
+      if (overflow) return;
+      pending.add(path);
+      if (pending.size() > maxPending) {
+        // Too many, scan all
+        overflow = true;
+        pending.clear();
+      }
+    }
+  }
+
+  /**
+   * Scans the paths reported by {@link #notifyChanged(File)},
+   * or the whole tree if too many paths are reported.
+   */
+  public void update() {
+    Set<String> paths;
+    boolean rescan;
+    synchronized (pendingLock) {
+      paths = pending;
+      rescan = overflow;
+      pending = new LinkedHashSet<String>();
+      overflow = false;
+    }
+    if (rescan) {
+      rescan();
+    } else if (!paths.isEmpty()) {
+      scan(paths);
+    }
+  }
+
+  /**
+   * Scans the whole tree again.
+   */
+  public void rescan() {
+    List<String> paths = new ArrayList<String>(1);
+    paths.add("");
+    scan(paths);
+  }
+
+  private void scan(Iterable<String> paths) {
+    synchronized (updateLock) {
+      List<Change> changes = new ArrayList<Change>();
+      for (String path : paths) {
+        // A new path needs its parent in the snapshot
+        lock.readLock().lock();
+        try {
+          while (path.length() != 0 && entries.get(parent(path)) == null) {
+            path = parent(path);
+          }
+        } finally {
+          lock.readLock().unlock();
+        }
+        scanPath(path, new ArrayList<String>(), changes);
+      }
+
+      for (Change change : changes) {
+        File file = toFile(change.path);
+        for (Listener listener : listeners) {
+          listener.onChange(file, change.change);
+        }
+      }
+    }
+  }
+
+  /**
+   * Scans {@code path} and updates the snapshot. The file system is read
+   * without the lock, the lock is held only to update entries.
+   */
+  private void scanPath(String path, List<String> ancestors, List<Change> changes) {
+    File file = toFile(path);
+    // Most entries are files, check isFile() first
+    FileState state = FileState.of(file);
+
+    if (state.isFile()) {
+      long length = state.length();
+      long lastModified = state.lastModified();
+      lock.writeLock().lock();
+      try {
+        Entry old = entries.get(path);
+        if (old != null && !old.isDirectory) {
+          if (old.length != length || old.lastModified != lastModified) {
+            putEntry(path, new Entry(false, length, lastModified));
+            changes.add(new Change(path, MODIFIED));
+          }
+        } else {
+          if (old != null) {
+            removeTree(path, changes);
+          }
+          putEntry(path, new Entry(false, length, lastModified));
+          changes.add(new Change(path, CREATED));
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      return;
+    }
+
+    if (!state.isDirectory()) {
+      lock.writeLock().lock();
+      try {
+        if (entries.get(path) != null) {
+          removeTree(path, changes);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      return;
+    }
+
+    String canonicalPath = FileUtils.canonicalPath(file);
+    boolean loop = ancestors.contains(canonicalPath);
+    String[] names = loop ? null : file.list();
+    Set<String> newNames = new TreeSet<String>();
+    if (names != null) {
+      for (String name : names) {
+        newNames.add(name);
+      }
+    }
+
+    List<String> removed = new ArrayList<String>();
+    lock.writeLock().lock();
+    try {
+      Entry old = entries.get(path);
+      if (old == null || !old.isDirectory) {
+        if (old != null) {
+          removeTree(path, changes);
+        }
+        putEntry(path, new Entry(true, 0, state.lastModified()));
+        changes.add(new Change(path, CREATED));
+      } else {
+        for (String name : old.children) {
+          if (!newNames.contains(name)) {
+            removed.add(name);
+          }
+        }
+        for (String name : removed) {
+          removeTree(child(path, name), changes);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    if (loop) return;
+    ancestors.add(canonicalPath);
+    for (String name : newNames) {
+      scanPath(child(path, name), ancestors, changes);
+    }
+    ancestors.remove(ancestors.size() - 1);
+  }
+
+  /**
+   * Puts {@code entry} and links it to its parent. Requires the write lock.
+   */
+  private void putEntry(String path, Entry entry) {
+    Entry old = entries.put(path, entry);
+    if (old != null && !old.isDirectory) {
+      totalSize -= old.length;
+      fileCount--;
+    }
+    if (!entry.isDirectory) {
+      totalSize += entry.length;
+      fileCount++;
+    }
+    if (old == null && path.length() != 0) {
+      Entry parent = entries.get(parent(path));
+      if (parent != null && parent.isDirectory) {
+        parent.children.add(name(path));
+      }
+    }
+  }
+
+  /**
+   * Removes {@code path} and everything under it. Requires the write lock.
+   */
+  private void removeTree(String path, List<Change> changes) {
+    Entry entry = entries.remove(path);
+    if (entry == null) return;
+    if (entry.isDirectory) {
+      for (Iterator<String> i = entry.children.iterator(); i.hasNext(); ) {
+        String name = i.next();
+        i.remove();
+        removeTree(child(path, name), changes);
+      }
+    } else {
+      totalSize -= entry.length;
+      fileCount--;
+    }
+    if (path.length() != 0) {
+      Entry parent = entries.get(parent(path));
+      if (parent != null && parent.isDirectory) {
+        parent.children.remove(name(path));
+      }
+    }
+    changes.add(new Change(path, DELETED));
+  }
+}
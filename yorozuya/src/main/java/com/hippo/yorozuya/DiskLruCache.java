@@ -0,0 +1,777 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A cache which keeps values in files in a directory, bounded by the total length.
+ * Each entry has a key and a value. Least recently used entries are evicted
+ * when the total length exceeds the max size.
+ * <p>
+ * Keys must match {@code [a-z0-9_-]{1,120}}. Values are written with an {@link Editor},
+ * to a temp file which replaces the old value on {@link Editor#commit()}.
+ * Readers keep reading the old value while it's replaced.
+ * Only one editor is allowed for a key at a time.
+ * <p>
+ * Operations are appended to a journal file. The journal is read
+ * to recover the entries on {@link #open(File, int, long, Executor)}.
+ * Entries which were being edited when the process died are discarded.
+ * The journal is rewritten once it has more redundant lines than entries. Reads are
+ * buffered until the next edit or {@link #flush()}, so the recency of recent
+ * reads could be lost if the process dies.
+ * <p>
+ * Eviction and journal compaction run on the executor,
+ * so the total length could exceed the max size for a short time.
+ * <p>
+ * The directory must be used by this cache only, everything in it could be deleted.
+ * It's thread-safe.
+ */
+public final class DiskLruCache implements Closeable {
+
+  static final String JOURNAL_FILE = "journal";
+  static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String MAGIC = "yorozuya.DiskLruCache";
+  static final String VERSION = "1";
+
+  private static final String CLEAN = "CLEAN";
+  private static final String DIRTY = "DIRTY";
+  private static final String REMOVE = "REMOVE";
+  private static final String READ = "READ";
+
+  // Keys have no dot, so value files never collide with journal files
+  private static final String CLEAN_SUFFIX = ".data";
+  private static final String DIRTY_SUFFIX = ".data.tmp";
+  private static final int MAX_KEY_LENGTH = 120;
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+  private final File directory;
+  private final File journalFile;
+  private final File journalFileTmp;
+  private final File journalFileBackup;
+  private final int appVersion;
+  private final Executor executor;
+
+  private long maxSize;
+  private long size;
+  private Writer journalWriter;
+  private int redundantOpCount;
+  private boolean closed;
+  private boolean cleanupScheduled;
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+  private final Runnable cleanupTask = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (DiskLruCache.this) {
+        cleanupScheduled = false;
+      }
+      cleanup();
+    }
+  };
+
+  private DiskLruCache(File directory, int appVersion, long maxSize, Executor executor) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE);
+    this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+    this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.appVersion = appVersion;
+    this.maxSize = maxSize;
+    this.executor = executor;
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creates it if it doesn't exist.
+   * If the journal is broken or written by another {@code appVersion},
+   * the whole directory is cleared.
+   *
+   * @param directory the directory of the cache, used by this cache only
+   * @param appVersion the version of the values, change it to drop all old values
+   * @param maxSize the max total length of all values
+   * @param executor the executor to evict entries and compact the journal,
+   *                 or null to do them on the current thread
+   * @return the cache
+   * @throws IllegalArgumentException if {@code maxSize} isn't positive
+   * @throws IOException if the directory or the journal can't be created
+   */
+  public static DiskLruCache open(File directory, int appVersion, long maxSize, Executor executor)
+      throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+
+    // The backup is the whole journal if renaming the new journal failed
+    File backup = new File(directory, JOURNAL_FILE_BACKUP);
+    if (backup.exists()) {
+      File journal = new File(directory, JOURNAL_FILE);
+      if (journal.exists()) {
+        backup.delete();
+      } else {
+        AtomicFile.rename(backup, journal);
+      }
+    }
+
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, maxSize, executor);
+    if (cache.journalFile.exists()) {
+      try {
+        boolean truncated = cache.readJournal();
+        cache.processJournal();
+        if (truncated) {
+          cache.rebuildJournal();
+        } else {
+          cache.journalWriter = newJournalWriter(cache.journalFile, true);
+        }
+        return cache;
+      } catch (IOException e) {
+        // Broken journal, start over
+        cache.close();
+        FileUtils.deleteContent(directory);
+        cache = new DiskLruCache(directory, appVersion, maxSize, executor);
+      }
+    }
+
+    if (!FileUtils.ensureDir(directory)) {
+      throw new IOException("Can't create directory: " + directory);
+    }
+    cache.rebuildJournal();
+    return cache;
+  }
+
+  private static Writer newJournalWriter(File file, boolean append) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file, append), IOUtils.UTF_8));
+  }
+
+  /**
+   * Reads a line ended with {@code '\n'}.
+   *
+   * @return the line, or {@code null} if no complete line left
+   */
+  private static String readLine(InputStream is, StringBuilder sb) throws IOException {
+    sb.setLength(0);
+    int b;
+    while ((b = is.read()) != -1) {
+      if (b == '\n') {
+        return sb.toString();
+      }
+      sb.append((char) b);
+    }
+    return null;
+  }
+
+  /**
+   * Reads the journal into the entries.
+   *
+   * @return {@code true} if the last line is incomplete
+   */
+  private boolean readJournal() throws IOException {
+    InputStream is = new BufferedInputStream(new FileInputStream(journalFile));
+    try {
+      StringBuilder sb = new StringBuilder();
+      String magic = readLine(is, sb);
+      String version = readLine(is, sb);
+      String appVersionString = readLine(is, sb);
+      String blank = readLine(is, sb);
+      if (!MAGIC.equals(magic)
+          || !VERSION.equals(version)
+          || !Integer.toString(appVersion).equals(appVersionString)
+          || !"".equals(blank)) {
+        throw new IOException("Unexpected journal header: ["
+            + magic + ", " + version + ", " + appVersionString + ", " + blank + "]");
+      }
+
+      int lineCount = 0;
+      String line;
+      while ((line = readLine(is, sb)) != null) {
+        readJournalLine(line);
+        lineCount++;
+      }
+      redundantOpCount = lineCount - entries.size();
+      // Something is left after the last '\n'
+      return sb.length() != 0;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  private void readJournalLine(String line) throws IOException {
+    int firstSpace = line.indexOf(' ');
+    if (firstSpace == -1) {
+      throw new IOException("Unexpected journal line: " + line);
+    }
+    String op = line.substring(0, firstSpace);
+    int secondSpace = line.indexOf(' ', firstSpace + 1);
+    String key = secondSpace == -1
+        ? line.substring(firstSpace + 1) : line.substring(firstSpace + 1, secondSpace);
+
+    if (REMOVE.equals(op) && secondSpace == -1) {
+      entries.remove(key);
+      return;
+    }
+
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      entries.put(key, entry);
+    }
+
+    if (CLEAN.equals(op) && secondSpace != -1) {
+      try {
+        entry.length = Long.parseLong(line.substring(secondSpace + 1));
+      } catch (NumberFormatException e) {
+        throw new IOException("Unexpected journal line: " + line);
+      }
+      entry.readable = true;
+      entry.currentEditor = null;
+    } else if (DIRTY.equals(op) && secondSpace == -1) {
+      entry.currentEditor = new Editor(entry);
+    } else if (!READ.equals(op) || secondSpace != -1) {
+      throw new IOException("Unexpected journal line: " + line);
+    }
+  }
+
+  /**
+   * Computes the size, and drops the entries which were being edited.
+   */
+  private void processJournal() {
+    journalFileTmp.delete();
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+      Entry entry = i.next();
+      if (entry.currentEditor == null) {
+        size += entry.length;
+      } else {
+        entry.currentEditor = null;
+        entry.getCleanFile().delete();
+        entry.getDirtyFile().delete();
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Writes a new journal with the current entries. It replaces the old one atomically.
+   */
+  private synchronized void rebuildJournal() throws IOException {
+    if (journalWriter != null) {
+      journalWriter.close();
+    }
+
+    Writer writer = newJournalWriter(journalFileTmp, false);
+    try {
+      writer.write(MAGIC);
+      writer.write('\n');
+      writer.write(VERSION);
+      writer.write('\n');
+      writer.write(Integer.toString(appVersion));
+      writer.write('\n');
+      writer.write('\n');
+      for (Entry entry : entries.values()) {
+        if (entry.currentEditor != null) {
+          writer.write(DIRTY + ' ' + entry.key + '\n');
+        } else {
+          writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length + '\n');
+        }
+      }
+    } finally {
+      writer.close();
+    }
+
+    if (journalFile.exists()) {
+      AtomicFile.rename(journalFile, journalFileBackup);
+    }
+    AtomicFile.rename(journalFileTmp, journalFile);
+    journalFileBackup.delete();
+
+    journalWriter = newJournalWriter(journalFile, true);
+    redundantOpCount = 0;
+  }
+
+  private void writeJournal(String line) throws IOException {
+    appendJournal(line);
+    journalWriter.flush();
+  }
+
+  /**
+   * Appends {@code line} to the journal without flushing it.
+   * It's flushed with the next edit, journal rebuild, {@link #flush()} or {@link #close()}.
+   */
+  private void appendJournal(String line) throws IOException {
+    journalWriter.write(line);
+    journalWriter.write('\n');
+  }
+
+  private static void validateKey(String key) {
+    int length = key.length();
+    if (length == 0 || length > MAX_KEY_LENGTH) {
+      throw new IllegalArgumentException("Keys must match [a-z0-9_-]{1,120}: \"" + key + "\"");
+    }
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '_' && c != '-') {
+        throw new IllegalArgumentException("Keys must match [a-z0-9_-]{1,120}: \"" + key + "\"");
+      }
+    }
+  }
+
+  private void checkNotClosed() {
+    if (closed) {
+      throw new IllegalStateException("Cache is closed");
+    }
+  }
+
+  /**
+   * Returns a snapshot of the value of {@code key}, or {@code null} if it doesn't exist.
+   * The snapshot keeps the value readable even if it's replaced or removed.
+   * Close the snapshot after reading.
+   *
+   * @throws IOException if the journal can't be written
+   * @throws IllegalStateException if the cache is closed
+   */
+  public synchronized Snapshot get(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = entries.get(key);
+    if (entry == null || !entry.readable) return null;
+
+    FileInputStream is;
+    try {
+      is = new FileInputStream(entry.getCleanFile());
+    } catch (FileNotFoundException e) {
+      // Removed by someone else
+      removeEntry(entry);
+      return null;
+    }
+
+    // Losing a READ only loses recency, don't flush for it
+    redundantOpCount++;
+    appendJournal(READ + ' ' + key);
+    if (journalRebuildRequired() && scheduleCleanupLocked()) {
+      cleanup();
+    }
+    return new Snapshot(key, entry.length, is);
+  }
+
+  /**
+   * Returns an editor for {@code key}, or {@code null} if another edit is in progress.
+   *
+   * @throws IOException if the journal can't be written
+   * @throws IllegalStateException if the cache is closed
+   */
+  public synchronized Editor edit(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      entries.put(key, entry);
+    } else if (entry.currentEditor != null) {
+      return null;
+    }
+
+    Editor editor = new Editor(entry);
+    entry.currentEditor = editor;
+    // Flush the journal before creating files to prevent file leaks
+    writeJournal(DIRTY + ' ' + key);
+    return editor;
+  }
+
+  private void completeEdit(Editor editor, boolean success) throws IOException {
+    boolean cleanup;
+    synchronized (this) {
+      Entry entry = editor.entry;
+      if (entry.currentEditor != editor) {
+        throw new IllegalStateException("Editor is done");
+      }
+
+      File dirty = entry.getDirtyFile();
+      if (success) {
+        // Most commits have written the value, check isFile() first
+        FileState state = FileState.of(dirty);
+        if (!state.isFile()) {
+          abortLocked(editor);
+          throw new IllegalStateException("No value is written for " + entry.key);
+        }
+        long length = state.length();
+        try {
+          AtomicFile.rename(dirty, entry.getCleanFile());
+        } catch (IOException e) {
+          abortLocked(editor);
+          throw e;
+        }
+        size = size - entry.length + length;
+        entry.length = length;
+        entry.readable = true;
+      } else {
+        dirty.delete();
+      }
+      entry.currentEditor = null;
+
+      redundantOpCount++;
+      if (entry.readable) {
+        writeJournal(CLEAN + ' ' + entry.key + ' ' + entry.length);
+      } else {
+        entries.remove(entry.key);
+        writeJournal(REMOVE + ' ' + entry.key);
+      }
+
+      cleanup = size > maxSize || journalRebuildRequired();
+      if (cleanup) {
+        cleanup = scheduleCleanupLocked();
+      }
+    }
+    if (cleanup) {
+      cleanup();
+    }
+  }
+
+  private void abortLocked(Editor editor) throws IOException {
+    Entry entry = editor.entry;
+    entry.getDirtyFile().delete();
+    entry.currentEditor = null;
+    redundantOpCount++;
+    if (entry.readable) {
+      writeJournal(CLEAN + ' ' + entry.key + ' ' + entry.length);
+    } else {
+      entries.remove(entry.key);
+      writeJournal(REMOVE + ' ' + entry.key);
+    }
+  }
+
+  /**
+   * Schedules the cleanup task.
+   *
+   * @return {@code true} if it should run on the current thread
+   */
+  private boolean scheduleCleanupLocked() {
+    if (executor == null) return true;
+    if (cleanupScheduled) return false;
+    cleanupScheduled = true;
+    try {
+      executor.execute(cleanupTask);
+      return false;
+    } catch (RejectedExecutionException e) {
+      cleanupScheduled = false;
+      return true;
+    }
+  }
+
+  private boolean journalRebuildRequired() {
+    return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+        && redundantOpCount >= entries.size();
+  }
+
+  /**
+   * Evicts entries until the size fits, then compacts the journal if required.
+   * The lock is released between evictions, so readers and writers aren't blocked
+   * for the whole eviction.
+   */
+  private void cleanup() {
+    try {
+      for (;;) {
+        synchronized (this) {
+          if (closed || !trimOneLocked()) break;
+        }
+      }
+      synchronized (this) {
+        if (!closed && journalRebuildRequired()) {
+          rebuildJournal();
+        }
+      }
+    } catch (IOException e) {
+      // Try again next time
+    }
+  }
+
+  /**
+   * Evicts the least recently used entry which isn't being edited.
+   *
+   * @return {@code false} if the size fits or nothing can be evicted
+   */
+  private boolean trimOneLocked() throws IOException {
+    if (size <= maxSize) return false;
+    for (Entry entry : entries.values()) {
+      if (entry.currentEditor == null) {
+        removeEntry(entry);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Removes the value of {@code key}. Entries being edited can't be removed.
+   *
+   * @return {@code true} if it's removed
+   * @throws IOException if the journal can't be written
+   * @throws IllegalStateException if the cache is closed
+   */
+  public synchronized boolean remove(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = entries.get(key);
+    if (entry == null || entry.currentEditor != null) return false;
+    removeEntry(entry);
+    if (journalRebuildRequired() && scheduleCleanupLocked()) {
+      cleanup();
+    }
+    return true;
+  }
+
+  private void removeEntry(Entry entry) throws IOException {
+    entry.getCleanFile().delete();
+    size -= entry.length;
+    entries.remove(entry.key);
+    redundantOpCount++;
+    writeJournal(REMOVE + ' ' + entry.key);
+  }
+
+  /**
+   * Returns the directory of the cache.
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the max total length of all values.
+   */
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the max total length of all values. Entries are evicted on the executor.
+   *
+   * @throws IllegalArgumentException if {@code maxSize} isn't positive
+   */
+  public void setMaxSize(long maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+    boolean cleanup;
+    synchronized (this) {
+      this.maxSize = maxSize;
+      cleanup = !closed && size > maxSize && scheduleCleanupLocked();
+    }
+    if (cleanup) {
+      cleanup();
+    }
+  }
+
+  /**
+   * Returns the total length of all values.
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of entries, including the ones being created.
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Evicts entries until the total length fits on the current thread,
+   * and flushes the journal.
+   *
+   * @throws IOException if the journal can't be written
+   * @throws IllegalStateException if the cache is closed
+   */
+  public void flush() throws IOException {
+    synchronized (this) {
+      checkNotClosed();
+    }
+    cleanup();
+    synchronized (this) {
+      checkNotClosed();
+      journalWriter.flush();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the cache is closed.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Aborts all edits and closes the journal. The cache can't be used after that.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    for (Entry entry : new ArrayList<Entry>(entries.values())) {
+      if (entry.currentEditor != null) {
+        entry.getDirtyFile().delete();
+        entry.currentEditor = null;
+      }
+    }
+    if (journalWriter != null) {
+      journalWriter.close();
+      journalWriter = null;
+    }
+  }
+
+  /**
+   * Closes the cache and deletes the directory.
+   *
+   * @return {@code true} if the directory doesn't exist anymore
+   */
+  public boolean delete() throws IOException {
+    close();
+    return FileUtils.delete(directory);
+  }
+
+  /**
+   * A snapshot of a value.
+   */
+  public static final class Snapshot implements Closeable {
+
+    private final String key;
+    private final long length;
+    private final FileInputStream is;
+
+    Snapshot(String key, long length, FileInputStream is) {
+      this.key = key;
+      this.length = length;
+      this.is = is;
+    }
+
+    /**
+     * Returns the key.
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * Returns the length of the value.
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * Returns the stream of the value. It's closed with the snapshot.
+     */
+    public FileInputStream getInputStream() {
+      return is;
+    }
+
+    @Override
+    public void close() {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Writes the value of an entry. Write the value with {@link #newOutputStream()}
+   * or to {@link #getFile()}, then call {@link #commit()} or {@link #abort()}.
+   */
+  public final class Editor {
+
+    private final Entry entry;
+
+    Editor(Entry entry) {
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the temp file to write the value to.
+     */
+    public File getFile() {
+      return entry.getDirtyFile();
+    }
+
+    /**
+     * Opens a new stream to write the value to. Close it before {@link #commit()}.
+     *
+     * @throws IOException if the temp file can't be opened
+     */
+    public FileOutputStream newOutputStream() throws IOException {
+      synchronized (DiskLruCache.this) {
+        if (entry.currentEditor != this) {
+          throw new IllegalStateException("Editor is done");
+        }
+      }
+      return new FileOutputStream(entry.getDirtyFile());
+    }
+
+    /**
+     * Replaces the value with the written one. Readers see the new value
+     * after this call. It may evict entries.
+     *
+     * @throws IOException if the value can't be renamed, or the journal can't be written
+     * @throws IllegalStateException if the editor is done, or nothing is written
+     */
+    public void commit() throws IOException {
+      completeEdit(this, true);
+    }
+
+    /**
+     * Discards the written value, the old value is kept.
+     *
+     * @throws IOException if the journal can't be written
+     * @throws IllegalStateException if the editor is done
+     */
+    public void abort() throws IOException {
+      completeEdit(this, false);
+    }
+  }
+
+  private final class Entry {
+
+    final String key;
+    long length;
+    // True if the entry has ever been committed
+    boolean readable;
+    Editor currentEditor;
+
+    Entry(String key) {
+      this.key = key;
+    }
+
+    File getCleanFile() {
+      return new File(directory, key + CLEAN_SUFFIX);
+    }
+
+    File getDirtyFile() {
+      return new File(directory, key + DIRTY_SUFFIX);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The disk usage of a file or a directory tree,
+ * the result of {@link FileUtils#du(File, int, Executor)}.
+ * <p>
+ * Sizes are the lengths of files, not the blocks they take.
+ * Directories which can't be listed count as empty.
+ * Symbolic links to subdirectories aren't counted.
+ */
+public final class DiskUsage {
+
+  private static final Comparator<DiskUsage> COMPARATOR = new Comparator<DiskUsage>() {
+    @Override
+    public int compare(DiskUsage lhs, DiskUsage rhs) {
+      return lhs.file.getName().compareTo(rhs.file.getName());
+    }
+  };
+
+  private final File file;
+  private final long size;
+  private final long fileCount;
+  private final long directoryCount;
+  private final List<DiskUsage> children;
+
+  DiskUsage(File file, long size, long fileCount, long directoryCount, List<DiskUsage> children) {
+    this.file = file;
+    this.size = size;
+    this.fileCount = fileCount;
+    this.directoryCount = directoryCount;
+    this.children = children;
+  }
+
+  /**
+   * Returns the file or directory.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the total length of all files in the tree.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the number of files in the tree.
+   */
+  public long getFileCount() {
+    return fileCount;
+  }
+
+  /**
+   * Returns the number of directories in the tree, not including the root.
+   */
+  public long getDirectoryCount() {
+    return directoryCount;
+  }
+
+  /**
+   * Returns the disk usage of each subdirectory, sorted by name.
+   * It's empty if the depth limit is reached.
+   */
+  public List<DiskUsage> getChildren() {
+    return children;
+  }
+
+  @Override
+  public String toString() {
+    return "DiskUsage{file=" + file + ", size=" + size + ", fileCount=" + fileCount
+        + ", directoryCount=" + directoryCount + "}";
+  }
+
+  /**
+   * Counts a tree in parallel. Each directory is a task, files are
+   * counted by the task of their directory. A directory is finished
+   * by the task which completes its last child.
+   */
+  static final class Counter {
+
+    private final TaskTree tasks;
+    private final int maxDepth;
+    private DiskUsage result;
+
+    Counter(Executor executor, int maxDepth) {
+      if (maxDepth < 0) {
+        throw new IllegalArgumentException("Negative maxDepth: " + maxDepth);
+      }
+      this.tasks = new TaskTree(executor);
+      this.maxDepth = maxDepth;
+    }
+
+    DiskUsage count(File file) throws InterruptedException {
+      // Most roots are directories, check isDirectory() first
+      FileState state = FileState.of(file);
+      if (state.isDirectory()) {
+        submit(new Node(file, FileUtils.canonicalPath(file), null, 0));
+        tasks.await();
+        return result;
+      } else if (state.isFile()) {
+        return new DiskUsage(file, state.length(), 1, 0, Collections.<DiskUsage>emptyList());
+      } else {
+        return new DiskUsage(file, 0, 0, 0, Collections.<DiskUsage>emptyList());
+      }
+    }
+
+    private void submit(final Node node) {
+      tasks.execute(new Runnable() {
+        @Override
+        public void run() {
+          process(node);
+        }
+      });
+    }
+
+    private void process(Node node) {
+      String[] names = node.file.list();
+      if (names != null) {
+        long size = 0;
+        long fileCount = 0;
+        for (String name : names) {
+          File child = new File(node.file, name);
+          // Most children are files, check isFile() first
+          FileState state = FileState.of(child);
+          if (state.isFile()) {
+            size += state.length();
+            fileCount++;
+          } else if (state.isDirectory()) {
+            // Skip links, they may loop or lead out of the tree
+            File resolved = new File(node.canonicalPath, name);
+            String canonicalPath = FileUtils.canonicalPath(resolved);
+            if (canonicalPath.equals(resolved.getPath())) {
+              node.directoryCount.incrementAndGet();
+              submit(new Node(child, canonicalPath, node, node.depth + 1));
+            }
+          }
+          // Removed while counting, ignore it
+        }
+        node.size.addAndGet(size);
+        node.fileCount.addAndGet(fileCount);
+      }
+      node.complete();
+    }
+
+    private final class Node extends TaskTree.Node<Node> {
+
+      final File file;
+      final String canonicalPath;
+      final int depth;
+      final AtomicLong size = new AtomicLong();
+      final AtomicLong fileCount = new AtomicLong();
+      final AtomicLong directoryCount = new AtomicLong();
+      // Only if the children are reported
+      final List<DiskUsage> children;
+
+      Node(File file, String canonicalPath, Node parent, int depth) {
+        super(parent);
+        this.file = file;
+        this.canonicalPath = canonicalPath;
+        this.depth = depth;
+        this.children = depth < maxDepth ? new ArrayList<DiskUsage>() : null;
+      }
+
+      /**
+       * Adds the directory to its parent.
+       */
+      @Override
+      void onComplete() {
+        List<DiskUsage> list;
+        if (children == null) {
+          list = Collections.emptyList();
+        } else {
+          synchronized (this) {
+            list = new ArrayList<DiskUsage>(children);
+          }
+          Collections.sort(list, COMPARATOR);
+          list = Collections.unmodifiableList(list);
+        }
+        DiskUsage usage = new DiskUsage(file, size.get(), fileCount.get(),
+            directoryCount.get(), list);
+
+        if (parent != null) {
+          parent.size.addAndGet(usage.size);
+          parent.fileCount.addAndGet(usage.fileCount);
+          parent.directoryCount.addAndGet(usage.directoryCount);
+          if (depth <= maxDepth) {
+            synchronized (parent) {
+              parent.children.add(usage);
+            }
+          }
+        } else {
+          result = usage;
+        }
+      }
+    }
+  }
+}
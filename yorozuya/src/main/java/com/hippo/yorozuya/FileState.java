@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+
+/**
+ * A snapshot of the state of a file. Each attribute is queried at most once,
+ * and answers are inferred from known attributes if possible.
+ * For example, if {@link #isFile()} returns {@code true},
+ * {@link #exists()} and {@link #isDirectory()} don't touch the file system.
+ * <p>
+ * Every {@code File} attribute method is a separate {@code stat()} call,
+ * ask the attribute most likely to be {@code true} first.
+ * <p>
+ * The snapshot is never refreshed, create a new one with {@link #of(File)} for that.
+ * It's not thread-safe.
+ */
+public final class FileState {
+
+  private static final byte UNKNOWN = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+
+  private static final long UNKNOWN_LONG = Long.MIN_VALUE;
+
+  private final File file;
+
+  private byte exists = UNKNOWN;
+  private byte isFile = UNKNOWN;
+  private byte isDirectory = UNKNOWN;
+  private long length = UNKNOWN_LONG;
+  private long lastModified = UNKNOWN_LONG;
+
+  private FileState(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Creates a snapshot of {@code file}. No attribute is queried yet.
+   *
+   * @param file the file, not null
+   */
+  public static FileState of(File file) {
+    if (file == null) {
+      throw new NullPointerException("file == null");
+    }
+    return new FileState(file);
+  }
+
+  private static byte toState(boolean value) {
+    return value ? TRUE : FALSE;
+  }
+
+  /**
+   * Returns the file of this snapshot.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns {@code true} if the file exists.
+   *
+   * @see File#exists()
+   */
+  public boolean exists() {
+    if (exists == UNKNOWN) {
+      if (isFile == TRUE || isDirectory == TRUE) {
+        exists = TRUE;
+      } else {
+        exists = toState(file.exists());
+        if (exists == FALSE) {
+          isFile = FALSE;
+          isDirectory = FALSE;
+        }
+      }
+    }
+    return exists == TRUE;
+  }
+
+  /**
+   * Returns {@code true} if the file is a normal file.
+   *
+   * @see File#isFile()
+   */
+  public boolean isFile() {
+    if (isFile == UNKNOWN) {
+      if (exists == FALSE || isDirectory == TRUE) {
+        isFile = FALSE;
+      } else {
+        isFile = toState(file.isFile());
+        if (isFile == TRUE) {
+          exists = TRUE;
+          isDirectory = FALSE;
+        }
+      }
+    }
+    return isFile == TRUE;
+  }
+
+  /**
+   * Returns {@code true} if the file is a directory.
+   *
+   * @see File#isDirectory()
+   */
+  public boolean isDirectory() {
+    if (isDirectory == UNKNOWN) {
+      if (exists == FALSE || isFile == TRUE) {
+        isDirectory = FALSE;
+      } else {
+        isDirectory = toState(file.isDirectory());
+        if (isDirectory == TRUE) {
+          exists = TRUE;
+          isFile = FALSE;
+        }
+      }
+    }
+    return isDirectory == TRUE;
+  }
+
+  /**
+   * Returns the length of the file, or 0 if it doesn't exist.
+   *
+   * @see File#length()
+   */
+  public long length() {
+    if (length == UNKNOWN_LONG) {
+      length = exists == FALSE ? 0 : file.length();
+    }
+    return length;
+  }
+
+  /**
+   * Returns the last modified time of the file, or 0 if it doesn't exist.
+   *
+   * @see File#lastModified()
+   */
+  public long lastModified() {
+    if (lastModified == UNKNOWN_LONG) {
+      lastModified = exists == FALSE ? 0 : file.lastModified();
+    }
+    return lastModified;
+  }
+}
@@ -21,10 +21,77 @@ package com.hippo.yorozuya;
  */
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.Checksum;
 
 public final class FileUtils {
   private FileUtils() {}
 
+  private static final int MAX_MAP_SIZE = Integer.MAX_VALUE;
+  private static final long MIN_DIGEST_MAP_SIZE = 1024 * 1024 * 4;
+  private static final int DIGEST_MAP_SIZE = 1024 * 1024 * 64;
+
+  private static volatile DirectoryCache directoryCache;
+
+  /**
+   * Lets {@link #ensureDir(File)} remember up to {@code maxSize} directories,
+   * so it doesn't touch the file system for them again.
+   * Directories deleted by {@link #delete(File)}, {@link #deleteContent(File)}
+   * and {@link #delete(File, Executor)} are forgotten.
+   * Call {@link #invalidate(File)} if a directory is deleted in other ways.
+   * <p>
+   * Paths are compared as absolute paths, symbolic links are not resolved.
+   *
+   * @param maxSize the max number of directories to remember
+   * @throws IllegalArgumentException if {@code maxSize} isn't positive
+   */
+  public static void enableDirectoryCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+    directoryCache = new DirectoryCache(maxSize);
+  }
+
+  /**
+   * Stops {@link #ensureDir(File)} remembering directories and forgets all of them.
+   */
+  public static void disableDirectoryCache() {
+    DirectoryCache cache = directoryCache;
+    directoryCache = null;
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Makes {@link #ensureDir(File)} forget {@code file} and all directories under it.
+   * It does nothing if the directory cache is disabled.
+   *
+   * @param file the file to forget, may be null
+   * @see #enableDirectoryCache(int)
+   */
+  public static void invalidate(File file) {
+    DirectoryCache cache = directoryCache;
+    if (cache != null && file != null) {
+      cache.invalidate(file);
+    }
+  }
+
   /**
    * Ensure {@code file} is a file or can be created as a file.
    *
@@ -33,7 +100,9 @@ public final class FileUtils {
    * otherwise {@code false} or {@code file} is null
    */
   public static boolean ensureFile(File file) {
-    return file != null && (!file.exists() || file.isFile());
+    if (file == null) return false;
+    // One stat for an existing file, a second one for anything else
+    return file.isFile() || !file.exists();
   }
 
   /**
@@ -44,7 +113,39 @@ public final class FileUtils {
    * otherwise {@code false} or {@code file} is null
    */
   public static boolean ensureDir(File file) {
-    return file != null && (file.exists() ? file.isDirectory() : file.mkdirs());
+    if (file == null) return false;
+
+    DirectoryCache cache = directoryCache;
+    if (cache == null) return ensureDirInternal(file);
+
+    if (cache.contains(file)) return true;
+    // Don't remember the directory if it's deleted while checking
+    long generation = cache.generation();
+    if (ensureDirInternal(file)) {
+      cache.add(file, generation);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  private static boolean ensureDirInternal(File file) {
+    // One stat for an existing directory
+    if (file.isDirectory()) return true;
+    // mkdirs() fails if the file exists. It also fails if another thread
+    // or process creates the directory at the same time, check it again.
+    return file.mkdirs() || file.isDirectory();
+  }
+
+  /**
+   * Returns a snapshot of the state of {@code file}.
+   * Attributes are queried on demand and cached.
+   *
+   * @param file the file, may be null
+   * @return the snapshot, or {@code null} if {@code file} is null
+   */
+  public static FileState stat(File file) {
+    return file != null ? FileState.of(file) : null;
   }
 
   /**
@@ -55,9 +156,20 @@ public final class FileUtils {
    */
   public static boolean delete(File file) {
     if (file == null) return true;
-    deleteContent(file);
-    file.delete();
-    return !file.exists();
+    invalidate(file);
+    try {
+      return deleteInternal(file);
+    } finally {
+      // Forget directories found while deleting
+      invalidate(file);
+    }
+  }
+
+  private static boolean deleteInternal(File file) {
+    // Files and empty directories are deleted at the first try
+    if (file.delete()) return true;
+    deleteContentInternal(file);
+    return file.delete() || !file.exists();
   }
 
   /**
@@ -68,12 +180,525 @@ public final class FileUtils {
    */
   public static boolean deleteContent(File file) {
     if (file == null) return true;
-    File[] files = file.listFiles();
-    if (files != null) {
-      for (File f: files) {
-        delete(f);
+    invalidateChildren(file);
+    try {
+      return deleteContentInternal(file);
+    } finally {
+      // Forget directories found while deleting
+      invalidateChildren(file);
+    }
+  }
+
+  private static void invalidateChildren(File file) {
+    DirectoryCache cache = directoryCache;
+    if (cache != null) {
+      cache.invalidateChildren(file);
+    }
+  }
+
+  private static boolean deleteContentInternal(File file) {
+    String[] names = file.list();
+    if (names == null) return true;
+    boolean result = true;
+    for (String name: names) {
+      result &= deleteInternal(new File(file, name));
+    }
+    return result;
+  }
+
+  /**
+   * Deletes {@code file} and its children if it is a directory.
+   * Directories are listed and deleted in parallel on {@code executor}.
+   * It waits for all tasks to finish.
+   * <p>
+   * Tasks never block, so {@code executor} could be any executor,
+   * even the one running the current thread.
+   *
+   * @param file the file to delete, may be null
+   * @param executor the executor to run tasks
+   * @return the result, deleted count and failed files
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   */
+  public static DeleteResult delete(File file, Executor executor) throws InterruptedException {
+    if (file == null) return new DeleteResult(0, new ArrayList<File>());
+    invalidate(file);
+    try {
+      return new ParallelDeleter(executor).delete(file);
+    } finally {
+      // Forget directories found while deleting
+      invalidate(file);
+    }
+  }
+
+  /**
+   * The result of {@link #delete(File, Executor)}.
+   */
+  public static final class DeleteResult {
+
+    private final long deletedCount;
+    private final List<File> failures;
+
+    DeleteResult(long deletedCount, List<File> failures) {
+      this.deletedCount = deletedCount;
+      this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Returns the number of deleted files and directories.
+     */
+    public long getDeletedCount() {
+      return deletedCount;
+    }
+
+    /**
+     * Returns the files and directories which can't be deleted.
+     * A directory is also listed if any child can't be deleted.
+     */
+    public List<File> getFailures() {
+      return failures;
+    }
+
+    /**
+     * Returns {@code true} if the file doesn't exist anymore.
+     */
+    public boolean isSuccessful() {
+      return failures.isEmpty();
+    }
+  }
+
+  /**
+   * Copies {@code src} to {@code dst}. If {@code src} is a directory,
+   * all files and directories under it are copied to {@code dst}.
+   * Existing files are overwritten, other files in {@code dst} are kept.
+   * <p>
+   * The tree is walked once on the current thread, files are copied
+   * on {@code executor} with {@link IOUtils#transfer}. It waits for all tasks to finish.
+   * A file which can't be copied doesn't stop others, it's listed in the result.
+   * The last modified time of {@code src} is set to each copied file.
+   * <p>
+   * Symbolic links are followed. A link to a directory which is being copied,
+   * the directory itself or one of its ancestors, isn't entered again,
+   * it's listed in the result as a failure.
+   *
+   * @param src the file or directory to copy, not null
+   * @param dst the file or directory to copy to, not null
+   * @param executor the executor to copy files, or null to copy on the current thread
+   * @param skipUnchanged {@code true} to skip files which have the same length
+   *                      and last modified time in {@code dst}
+   * @return the result, copied count and failed files
+   * @throws IllegalArgumentException if {@code dst} is under {@code src}
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   */
+  public static CopyResult copyTree(File src, File dst, Executor executor, boolean skipUnchanged)
+      throws InterruptedException {
+    // Resolve symbolic links, dst might be under src through a link
+    String srcPath = canonicalPath(src);
+    String dstPath = canonicalPath(dst);
+    if (dstPath.equals(srcPath) || dstPath.startsWith(srcPath + File.separatorChar)) {
+      throw new IllegalArgumentException("Can't copy " + src + " to " + dst);
+    }
+    return new TreeCopier(executor, skipUnchanged).copy(src, dst);
+  }
+
+  /**
+   * Returns the canonical path of {@code file}, or the absolute path
+   * if it can't be resolved.
+   */
+  static String canonicalPath(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      return file.getAbsolutePath();
+    }
+  }
+
+  /**
+   * The result of {@link #copyTree(File, File, Executor, boolean)}.
+   */
+  public static final class CopyResult {
+
+    private final long copiedCount;
+    private final long skippedCount;
+    private final long copiedBytes;
+    private final List<File> failures;
+
+    CopyResult(long copiedCount, long skippedCount, long copiedBytes, List<File> failures) {
+      this.copiedCount = copiedCount;
+      this.skippedCount = skippedCount;
+      this.copiedBytes = copiedBytes;
+      this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Returns the number of copied files.
+     */
+    public long getCopiedCount() {
+      return copiedCount;
+    }
+
+    /**
+     * Returns the number of files skipped as unchanged.
+     */
+    public long getSkippedCount() {
+      return skippedCount;
+    }
+
+    /**
+     * Returns the number of copied bytes.
+     */
+    public long getCopiedBytes() {
+      return copiedBytes;
+    }
+
+    /**
+     * Returns the source files and directories which can't be copied.
+     */
+    public List<File> getFailures() {
+      return failures;
+    }
+
+    /**
+     * Returns {@code true} if all files are copied or skipped.
+     */
+    public boolean isSuccessful() {
+      return failures.isEmpty();
+    }
+  }
+
+  /**
+   * Counts the total length, files and directories of the tree of {@code file}
+   * on the current thread.
+   *
+   * @see #du(File, int, Executor)
+   */
+  public static DiskUsage du(File file, int maxDepth) {
+    try {
+      return new DiskUsage.Counter(null, maxDepth).count(file);
+    } catch (InterruptedException e) {
+      // Never waits without executor
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Counts the total length, files and directories of the tree of {@code file}.
+   * The tree is walked once, each directory is listed and counted
+   * as a task on {@code executor}. It waits for all tasks to finish.
+   * <p>
+   * {@code maxDepth} only limits the breakdown, the totals always cover
+   * the whole tree. With {@code maxDepth} 1, {@link DiskUsage#getChildren()}
+   * of the result has the usage of each direct subdirectory.
+   * <p>
+   * Symbolic links to subdirectories are skipped, they may loop or lead out
+   * of the tree. Symbolic links to files count as the files they point to.
+   *
+   * @param file the file or directory to count, not null
+   * @param maxDepth the max depth of subdirectories to report
+   * @param executor the executor to run tasks, or null to run on the current thread
+   * @return the usage, all zeros if {@code file} doesn't exist
+   * @throws IllegalArgumentException if {@code maxDepth} is negative
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   */
+  public static DiskUsage du(File file, int maxDepth, Executor executor)
+      throws InterruptedException {
+    return new DiskUsage.Counter(executor, maxDepth).count(file);
+  }
+
+  /**
+   * Reads all bytes of {@code file}.
+   * The length of the file is used to size the array.
+   *
+   * @param file the file to read, may be null
+   * @return the requested byte array, or {@code null} if {@code file} is null
+   * @throws IOException if an I/O error occurs
+   * @see IOUtils#readAll(java.nio.channels.FileChannel)
+   */
+  public static byte[] toByteArray(File file) throws IOException {
+    if (file == null) return null;
+    FileInputStream is = new FileInputStream(file);
+    try {
+      return IOUtils.readAll(is.getChannel());
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Maps the whole {@code file} into memory, read-only.
+   *
+   * @see #map(File, long, long, int)
+   */
+  public static MappedByteBuffer[] map(File file) throws IOException {
+    return map(file, 0, -1, MAX_MAP_SIZE);
+  }
+
+  /**
+   * Maps a region of {@code file} into memory, read-only.
+   *
+   * @see #map(File, long, long, int)
+   */
+  public static MappedByteBuffer[] map(File file, long offset, long length) throws IOException {
+    return map(file, offset, length, MAX_MAP_SIZE);
+  }
+
+  /**
+   * Maps a region of {@code file} into memory, read-only.
+   * <p>
+   * A single {@code MappedByteBuffer} can't be larger than 2 GiB,
+   * so the region is split into chunks of {@code chunkSize} bytes,
+   * the last chunk might be smaller.
+   * The file is closed before returning, the mappings stay valid
+   * until they are garbage-collected or passed to {@link #unmap(MappedByteBuffer...)}.
+   *
+   * @param file the file to map
+   * @param offset the start of the region
+   * @param length the length of the region, or -1 to map to the end of the file
+   * @param chunkSize the max size of each chunk
+   * @return the mapped chunks in order, empty if the region is empty
+   * @throws IllegalArgumentException if the region is out of the file,
+   * or {@code chunkSize} isn't positive
+   * @throws IOException if an I/O error occurs
+   */
+  public static MappedByteBuffer[] map(File file, long offset, long length, int chunkSize)
+      throws IOException {
+    if (offset < 0 || length < -1 || chunkSize <= 0) {
+      throw new IllegalArgumentException("Illegal argument: offset = " + offset
+          + ", length = " + length + ", chunkSize = " + chunkSize);
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (length == -1) {
+        length = Math.max(size - offset, 0);
+      }
+      if (offset + length > size) {
+        throw new IllegalArgumentException("Out of file: offset = " + offset
+            + ", length = " + length + ", size = " + size);
+      }
+
+      MappedByteBuffer[] buffers = new MappedByteBuffer[(int) MathUtils.ceilDiv(length, chunkSize)];
+      for (int i = 0; i < buffers.length; i++) {
+        long position = offset + (long) i * chunkSize;
+        long remaining = Math.min(length - (long) i * chunkSize, chunkSize);
+        buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, remaining);
+      }
+      return buffers;
+    } finally {
+      IOUtils.closeQuietly(raf);
+    }
+  }
+
+  /**
+   * Releases the mappings of {@code buffers} right now, instead of waiting for garbage collection.
+   * <p>
+   * <b>Accessing an unmapped buffer crashes the VM.</b>
+   * The buffers must not be used, or shared with other threads which might use them, any more.
+   * <p>
+   * It relies on VM internals. If they are not available,
+   * the mappings are released when the buffers are garbage-collected.
+   *
+   * @param buffers the buffers to unmap, null elements are skipped
+   * @return {@code true} if all buffers are unmapped
+   */
+  public static boolean unmap(MappedByteBuffer... buffers) {
+    if (buffers == null) return true;
+    boolean result = true;
+    for (MappedByteBuffer buffer: buffers) {
+      if (buffer != null) {
+        result &= Unmapper.unmap(buffer);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Maps {@code file} and copies it to a byte array.
+   * It's designed for small files, no more than 2 GiB.
+   *
+   * @param file the file to read, may be null
+   * @return the requested byte array, or {@code null} if {@code file} is null
+   * @throws IOException if an I/O error occurs or the file is too large
+   */
+  public static byte[] mapToByteArray(File file) throws IOException {
+    if (file == null) return null;
+    MappedByteBuffer buffer = mapSmallFile(file);
+    if (buffer == null) return ArrayUtils.EMPTY_BYTE_ARRAY;
+    try {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    } finally {
+      unmap(buffer);
+    }
+  }
+
+  /**
+   * Maps {@code file} and decodes it as a String.
+   * It's designed for small files, no more than 2 GiB.
+   * Malformed input is replaced, as {@link String#String(byte[], Charset)} does.
+   *
+   * @param file the file to read, may be null
+   * @param charset the charset of the requested String, may be null
+   * @return the requested String, or {@code null} if {@code file} or {@code charset} is null
+   * @throws IOException if an I/O error occurs or the file is too large
+   */
+  public static String mapToString(File file, Charset charset) throws IOException {
+    if (file == null || charset == null) return null;
+    MappedByteBuffer buffer = mapSmallFile(file);
+    if (buffer == null) return StringUtils.EMPTY;
+    try {
+      return charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE)
+          .decode(buffer)
+          .toString();
+    } finally {
+      unmap(buffer);
+    }
+  }
+
+  /**
+   * Maps the whole {@code file} as one buffer. Returns {@code null} if the file is empty.
+   */
+  private static MappedByteBuffer mapSmallFile(File file) throws IOException {
+    long length = file.length();
+    if (length > MAX_MAP_SIZE) {
+      throw new IOException("File is too large: " + length);
+    }
+    // Map the length read above, the file might grow in the meantime
+    MappedByteBuffer[] buffers = map(file, 0, length, MAX_MAP_SIZE);
+    return buffers.length != 0 ? buffers[0] : null;
+  }
+
+  /**
+   * Reads all bytes of {@code file} and updates {@code checksum} with them.
+   *
+   * @param file the file to read
+   * @param checksum the checksum to update, not reset before reading
+   * @return the value of {@code checksum} after updating
+   * @throws IOException if an I/O error occurs
+   */
+  public static long checksum(File file, Checksum checksum) throws IOException {
+    FileInputStream is = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[IOUtils.CHECKSUM_BUFFER_SIZE];
+      int n;
+      while ((n = is.read(buffer)) != -1) {
+        checksum.update(buffer, 0, n);
+      }
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    return checksum.getValue();
+  }
+
+  /**
+   * Reads all bytes of {@code file} and updates {@code digest} with them.
+   * Large files are mapped into memory chunk by chunk instead of being read to heap.
+   *
+   * @param file the file to read
+   * @param digest the digest to update, not reset before reading
+   * @return the result of {@link MessageDigest#digest()}
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] digest(File file, MessageDigest digest) throws IOException {
+    long length = file.length();
+    if (length < MIN_DIGEST_MAP_SIZE) {
+      FileInputStream is = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[IOUtils.CHECKSUM_BUFFER_SIZE];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          digest.update(buffer, 0, n);
+        }
+      } finally {
+        IOUtils.closeQuietly(is);
+      }
+    } else {
+      // Map one chunk at a time to keep the address space usage low
+      for (long offset = 0; offset < length; offset += DIGEST_MAP_SIZE) {
+        MappedByteBuffer[] buffers =
+            map(file, offset, Math.min(length - offset, DIGEST_MAP_SIZE), DIGEST_MAP_SIZE);
+        try {
+          for (MappedByteBuffer buffer: buffers) {
+            digest.update(buffer);
+          }
+        } finally {
+          unmap(buffers);
+        }
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Returns the digest of {@code file} with the algorithm.
+   *
+   * @param file the file to read
+   * @param algorithm the name of the algorithm, like {@code "SHA-256"}
+   * @return the digest
+   * @throws IOException if an I/O error occurs
+   * @throws NoSuchAlgorithmException if the algorithm is not available
+   * @see #digest(File, MessageDigest)
+   */
+  public static byte[] digest(File file, String algorithm)
+      throws IOException, NoSuchAlgorithmException {
+    return digest(file, MessageDigest.getInstance(algorithm));
+  }
+
+  /**
+   * Invokes the cleaner of direct buffers via reflection.
+   */
+  private static final class Unmapper {
+
+    // Java 9+: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+      Object unsafe = null;
+      Method invokeCleaner = null;
+      try {
+        Class<?> clazz = Class.forName("sun.misc.Unsafe");
+        invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        Field field = clazz.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        unsafe = field.get(null);
+      } catch (Throwable e) {
+        invokeCleaner = null;
+      }
+      UNSAFE = unsafe;
+      INVOKE_CLEANER = invokeCleaner;
+    }
+
+    static boolean unmap(MappedByteBuffer buffer) {
+      if (INVOKE_CLEANER != null && UNSAFE != null) {
+        try {
+          INVOKE_CLEANER.invoke(UNSAFE, buffer);
+          return true;
+        } catch (Throwable e) {
+          return false;
+        }
+      }
+
+      // Java 6 to 8 and Android: DirectByteBuffer.cleaner().clean()
+      try {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner == null) return false;
+        Method cleanMethod = cleaner.getClass().getMethod("clean");
+        cleanMethod.setAccessible(true);
+        cleanMethod.invoke(cleaner);
+        return true;
+      } catch (Throwable e) {
+        return false;
       }
     }
-    return ArrayUtils.isEmpty(file.listFiles());
   }
 }
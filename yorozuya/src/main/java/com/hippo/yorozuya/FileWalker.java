@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory tree lazily. Directories are listed when the walk reaches them,
+ * only names are listed, {@code File} objects are created one by one
+ * for names which pass the filters.
+ * <p>
+ * The root itself isn't returned. Directories are returned before their children.
+ * <pre>{@code
+ * for (File file : new FileWalker(dir).filter(FileWalker.glob("*.jpg")).filesOnly()) {
+ *   ...
+ * }
+ * }</pre>
+ * Symbolic links are followed. A directory which resolves to itself or
+ * to one of its ancestors isn't entered again.
+ * <p>
+ * Configure it before iterating. Each iterator walks the tree again.
+ */
+public final class FileWalker implements Iterable<File> {
+
+  private static final String[] EMPTY_NAMES = new String[0];
+
+  private final File root;
+  private boolean breadthFirst;
+  private int maxDepth = Integer.MAX_VALUE;
+  private FilenameFilter filter;
+  private FilenameFilter prune;
+  private boolean filesOnly;
+  private boolean loopProtection = true;
+
+  /**
+   * Creates a depth-first walker with no filter and no depth limit.
+   *
+   * @param root the root directory
+   */
+  public FileWalker(File root) {
+    this.root = root;
+  }
+
+  /**
+   * Walks level by level instead of depth-first.
+   */
+  public FileWalker breadthFirst() {
+    breadthFirst = true;
+    return this;
+  }
+
+  /**
+   * Limits the depth. Children of the root are at depth 1.
+   *
+   * @throws IllegalArgumentException if {@code maxDepth} is negative
+   */
+  public FileWalker maxDepth(int maxDepth) {
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("Negative maxDepth: " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+    return this;
+  }
+
+  /**
+   * Only returns files and directories which names are accepted by {@code filter}.
+   * Directories not accepted are still entered. The filter is called
+   * before any {@code File} object is created for the name.
+   *
+   * @see #glob(String)
+   */
+  public FileWalker filter(FilenameFilter filter) {
+    this.filter = filter;
+    return this;
+  }
+
+  /**
+   * Doesn't enter directories which names are accepted by {@code prune}.
+   * Whether they are returned depends on {@link #filter(FilenameFilter)}.
+   */
+  public FileWalker prune(FilenameFilter prune) {
+    this.prune = prune;
+    return this;
+  }
+
+  /**
+   * Doesn't return directories.
+   */
+  public FileWalker filesOnly() {
+    filesOnly = true;
+    return this;
+  }
+
+  /**
+   * Turns on or off symbolic link loop protection. It's on by default.
+   * It resolves the canonical path of each directory, turn it off
+   * if the tree has no symbolic link to save the cost.
+   */
+  public FileWalker loopProtection(boolean loopProtection) {
+    this.loopProtection = loopProtection;
+    return this;
+  }
+
+  @Override
+  public Iterator<File> iterator() {
+    return new Walk(this);
+  }
+
+  /**
+   * Returns a filter which accepts names matching the glob {@code pattern}.
+   * <ul>
+   * <li>{@code *} matches any characters</li>
+   * <li>{@code ?} matches one character</li>
+   * <li>{@code [abc]}, {@code [a-z]} and {@code [!a-z]} match one character in or not in the set</li>
+   * <li>{@code {jpg,png}} matches any of the alternatives</li>
+   * <li>{@code \} escapes the next character</li>
+   * </ul>
+   *
+   * @throws IllegalArgumentException if {@code pattern} is malformed
+   */
+  public static FilenameFilter glob(String pattern) {
+    final Pattern regex = Pattern.compile(globToRegex(pattern));
+    return new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return regex.matcher(name).matches();
+      }
+    };
+  }
+
+  static String globToRegex(String glob) {
+    StringBuilder sb = new StringBuilder(glob.length() + 8);
+    boolean inGroup = false;
+    for (int i = 0, n = glob.length(); i < n; i++) {
+      char c = glob.charAt(i);
+      switch (c) {
+        case '*':
+          sb.append(".*");
+          break;
+        case '?':
+          sb.append('.');
+          break;
+        case '[': {
+          int end = glob.indexOf(']', i + 2);
+          if (end == -1) {
+            throw new IllegalArgumentException("Missing ']' in glob: " + glob);
+          }
+          sb.append('[');
+          int start = i + 1;
+          if (glob.charAt(start) == '!') {
+            sb.append('^');
+            start++;
+          }
+          for (int j = start; j < end; j++) {
+            char d = glob.charAt(j);
+            if (d == '\\' || d == '[' || d == '&' || d == '^') {
+              sb.append('\\');
+            }
+            sb.append(d);
+          }
+          sb.append(']');
+          i = end;
+          break;
+        }
+        case '{':
+          if (inGroup) {
+            throw new IllegalArgumentException("Nested '{' in glob: " + glob);
+          }
+          inGroup = true;
+          sb.append("(?:");
+          break;
+        case '}':
+          if (inGroup) {
+            inGroup = false;
+            sb.append(')');
+          } else {
+            sb.append("\\}");
+          }
+          break;
+        case ',':
+          sb.append(inGroup ? "|" : ",");
+          break;
+        case '\\':
+          if (++i == n) {
+            throw new IllegalArgumentException("Trailing '\\' in glob: " + glob);
+          }
+          appendLiteral(sb, glob.charAt(i));
+          break;
+        default:
+          appendLiteral(sb, c);
+          break;
+      }
+    }
+    if (inGroup) {
+      throw new IllegalArgumentException("Missing '}' in glob: " + glob);
+    }
+    return sb.toString();
+  }
+
+  private static void appendLiteral(StringBuilder sb, char c) {
+    if ("\\.[]{}()*+-?^$|".indexOf(c) != -1) {
+      sb.append('\\');
+    }
+    sb.append(c);
+  }
+
+  private static final class Frame {
+
+    final File dir;
+    final Frame parent;
+    final int depth;
+    final String canonicalPath;
+    String[] names;
+    int index;
+
+    Frame(File dir, Frame parent, int depth, String canonicalPath) {
+      this.dir = dir;
+      this.parent = parent;
+      this.depth = depth;
+      this.canonicalPath = canonicalPath;
+    }
+
+    boolean hasAncestor(String path) {
+      for (Frame frame = this; frame != null; frame = frame.parent) {
+        if (path.equals(frame.canonicalPath)) return true;
+      }
+      return false;
+    }
+  }
+
+  private static final class Walk implements Iterator<File> {
+
+    private final boolean breadthFirst;
+    private final int maxDepth;
+    private final FilenameFilter filter;
+    private final FilenameFilter prune;
+    private final boolean filesOnly;
+    private final boolean loopProtection;
+
+    // Stack for depth-first, queue for breadth-first
+    private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+    private File next;
+
+    Walk(FileWalker walker) {
+      breadthFirst = walker.breadthFirst;
+      maxDepth = walker.maxDepth;
+      filter = walker.filter;
+      prune = walker.prune;
+      filesOnly = walker.filesOnly;
+      loopProtection = walker.loopProtection;
+      if (maxDepth > 0) {
+        File root = walker.root;
+        frames.add(new Frame(root, null, 0, loopProtection ? FileUtils.canonicalPath(root) : null));
+      }
+    }
+
+    private File computeNext() {
+      for (;;) {
+        Frame frame = breadthFirst ? frames.peekFirst() : frames.peekLast();
+        if (frame == null) return null;
+
+        if (frame.names == null) {
+          String[] names = frame.dir.list();
+          frame.names = names != null ? names : EMPTY_NAMES;
+        }
+        if (frame.index == frame.names.length) {
+          if (breadthFirst) {
+            frames.pollFirst();
+          } else {
+            frames.pollLast();
+          }
+          continue;
+        }
+
+        String name = frame.names[frame.index];
+        // Let the names go as soon as possible
+        frame.names[frame.index++] = null;
+
+        // Filter names before creating any object
+        boolean accepted = filter == null || filter.accept(frame.dir, name);
+        boolean enter = frame.depth + 1 < maxDepth
+            && (prune == null || !prune.accept(frame.dir, name));
+        if (!accepted && !enter) continue;
+
+        File file = new File(frame.dir, name);
+        boolean isDirectory = false;
+        if (enter || filesOnly) {
+          // Most entries are files, check isFile() first
+          FileState state = FileState.of(file);
+          isDirectory = !state.isFile() && state.isDirectory();
+        }
+
+        if (enter && isDirectory) {
+          String path = null;
+          if (loopProtection) {
+            path = FileUtils.canonicalPath(file);
+          }
+          if (path == null || !frame.hasAncestor(path)) {
+            frames.addLast(new Frame(file, frame, frame.depth + 1, path));
+          }
+        }
+
+        if (accepted && (!filesOnly || !isDirectory)) {
+          return file;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        next = computeNext();
+      }
+      return next != null;
+    }
+
+    @Override
+    public File next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      File result = next;
+      next = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
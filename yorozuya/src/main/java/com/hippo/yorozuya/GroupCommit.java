@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Commits many atomic writes together, so they share one flush cycle.
+ * <p>
+ * {@link #commit(AtomicFile.Output)} only closes the temp file.
+ * {@link #flush()} flushes all pending temp files to the storage device,
+ * renames them to their files in commit order, then flushes each parent
+ * directory once. Compared to {@link AtomicFile.Output#commit(boolean)}
+ * with {@code sync}, writers don't wait for the storage device,
+ * and a directory is flushed once per cycle instead of once per file.
+ * <p>
+ * Guarantees:
+ * <ul>
+ * <li>A file never has partial content.</li>
+ * <li>Before {@link #flush()}, a committed file isn't visible,
+ * the file keeps its old content.</li>
+ * <li>After {@link #flush()} returns, all writes committed before it was called
+ * are visible, and durable if the platform can flush directories
+ * (see {@link AtomicFile}).</li>
+ * <li>If the process dies before {@link #flush()}, the writes are lost
+ * and their temp files are left in the directories.</li>
+ * </ul>
+ * It's thread-safe.
+ */
+public final class GroupCommit {
+
+  private final int maxPending;
+
+  private final Object flushLock = new Object();
+  private List<AtomicFile.Output> pending = new ArrayList<AtomicFile.Output>();
+
+  /**
+   * Creates a group commit.
+   *
+   * @param maxPending {@link #commit(AtomicFile.Output)} flushes
+   *                   if there are {@code maxPending} pending writes,
+   *                   0 for no limit
+   * @throws IllegalArgumentException if {@code maxPending} is negative
+   */
+  public GroupCommit(int maxPending) {
+    if (maxPending < 0) {
+      throw new IllegalArgumentException("Negative maxPending: " + maxPending);
+    }
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Returns the number of writes waiting for {@link #flush()}.
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Closes the temp file of {@code output} and adds it to the next flush cycle.
+   * {@code output} can't be used after that.
+   *
+   * @param output the output from {@link AtomicFile#openWrite(File)}
+   * @throws IOException if the temp file can't be closed, or the flush cycle fails
+   */
+  public void commit(AtomicFile.Output output) throws IOException {
+    output.finish(false);
+    output.markCommitted();
+    boolean full;
+    synchronized (this) {
+      pending.add(output);
+      full = maxPending != 0 && pending.size() >= maxPending;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Makes all committed writes visible and durable.
+   * Writes which fail are discarded, and their temp files are deleted.
+   *
+   * @throws IOException if any write fails, other writes are still done
+   */
+  public void flush() throws IOException {
+    // One cycle at a time, so a write committed before this call
+    // is either in this cycle or in the finished one
+    synchronized (flushLock) {
+      List<AtomicFile.Output> outputs;
+      synchronized (this) {
+        if (pending.isEmpty()) return;
+        outputs = pending;
+        pending = new ArrayList<AtomicFile.Output>();
+      }
+
+      IOException exception = null;
+      boolean[] failed = new boolean[outputs.size()];
+
+      // Flush the bytes before any rename
+      for (int i = 0, n = outputs.size(); i < n; i++) {
+        File tempFile = outputs.get(i).getTempFile();
+        try {
+          AtomicFile.sync(tempFile);
+        } catch (IOException e) {
+          failed[i] = true;
+          tempFile.delete();
+          if (exception == null) exception = e;
+        }
+      }
+
+      Set<File> dirs = new LinkedHashSet<File>();
+      for (int i = 0, n = outputs.size(); i < n; i++) {
+        if (failed[i]) continue;
+        AtomicFile.Output output = outputs.get(i);
+        File tempFile = output.getTempFile();
+        try {
+          AtomicFile.rename(tempFile, output.getFile());
+          dirs.add(tempFile.getParentFile());
+        } catch (IOException e) {
+          tempFile.delete();
+          if (exception == null) exception = e;
+        }
+      }
+
+      for (File dir : dirs) {
+        AtomicFile.syncDirectory(dir);
+      }
+
+      if (exception != null) {
+        throw exception;
+      }
+    }
+  }
+}
@@ -41,4 +41,21 @@ public final class HashCodeUtils {
     }
     return hash;
   }
+
+  /**
+   * Spreads the bits of {@code hash}, so every bit of the result
+   * depends on every bit of {@code hash}. Use it if the low bits
+   * of a hash code are used as an index, such as {@link String#hashCode()}
+   * of similar strings.
+   * <p>
+   * It's the finalization mix of MurmurHash3.
+   */
+  public static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
 }
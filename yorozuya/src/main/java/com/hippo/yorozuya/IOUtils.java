@@ -22,22 +22,63 @@ package com.hippo.yorozuya;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.Checksum;
 
 public final class IOUtils {
   private IOUtils() {}
 
   private static final int EOF = -1;
   private static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+  private static final long MAX_TRANSFER_SIZE = 1024 * 1024 * 8;
+  private static final int MAX_READ_SIZE = 1024 * 1024;
+  private static final int DEFAULT_PIPELINE_BUFFER_COUNT = 4;
+  static final int CHECKSUM_BUFFER_SIZE = 1024 * 64;
+  // Some VMs reserve some header words in an array
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
   /**
    * UTF_8 Charset.
    */
   public static final Charset UTF_8 = Charset.forName("UTF-8");
 
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private static final ConcurrentHashMap<String, Charset> CHARSETS =
+      new ConcurrentHashMap<String, Charset>();
+
+  private static final ThreadLocal<Decoder> DECODER = new ThreadLocal<Decoder>() {
+    @Override
+    protected Decoder initialValue() {
+      return new Decoder();
+    }
+  };
+
   /**
    * Closes the {@link Closeable}. Have no worries.
    *
@@ -53,6 +94,12 @@ public final class IOUtils {
 
   /**
    * Copies all bytes from {@code is} to {@code os}.
+   * <p>
+   * If {@code is} is exactly a {@link FileInputStream} and {@code os} is
+   * exactly a {@link FileOutputStream}, bytes are copied between their channels
+   * with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+   * which lets the kernel move them without a user-space buffer.
+   * If {@code is} isn't seekable, a pipe for example, bytes are copied through a buffer.
    *
    * @param is the {@code InputStream} to read from, may be null
    * @param os the {@code OutputStream} to write to, may be null
@@ -61,7 +108,30 @@ public final class IOUtils {
    */
   public static long copy(InputStream is, OutputStream os) throws IOException {
     if (is == null || os == null) return 0;
-    byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    return copy(is, os, new byte[DEFAULT_BUFFER_SIZE]);
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, using {@code buffer} as the transfer buffer.
+   * File streams are copied as {@link #copy(InputStream, OutputStream)} does,
+   * {@code buffer} is left untouched in that case.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param os the {@code OutputStream} to write to, may be null
+   * @param buffer the buffer to use, not empty
+   * @return the number of bytes copied, or 0 if {@code is} or {@code os} is null
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if {@code buffer} is null or empty
+   */
+  public static long copy(InputStream is, OutputStream os, byte[] buffer) throws IOException {
+    if (ArrayUtils.isEmpty(buffer)) {
+      throw new IllegalArgumentException("Buffer is empty");
+    }
+    if (is == null || os == null) return 0;
+    // Subclasses may override read() or write(), only trust the exact classes
+    if (is.getClass() == FileInputStream.class && os.getClass() == FileOutputStream.class) {
+      return transfer(((FileInputStream) is).getChannel(), ((FileOutputStream) os).getChannel());
+    }
     long count = 0;
     int n;
     while ((n = is.read(buffer)) != EOF) {
@@ -71,6 +141,221 @@ public final class IOUtils {
     return count;
   }
 
+  /**
+   * Copies all bytes from {@code is} to {@code os},
+   * borrowing the transfer buffer from {@code pool}.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param os the {@code OutputStream} to write to, may be null
+   * @param pool the pool to borrow the buffer from
+   * @return the number of bytes copied, or 0 if {@code is} or {@code os} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static long copy(InputStream is, OutputStream os, BufferPool pool) throws IOException {
+    if (is == null || os == null) return 0;
+    byte[] buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+    try {
+      return copy(is, os, buffer);
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, updating {@code checksums}
+   * with the copied bytes on the way.
+   *
+   * @see #copy(InputStream, OutputStream, Checksum[], MessageDigest[])
+   */
+  public static long copy(InputStream is, OutputStream os, Checksum... checksums)
+      throws IOException {
+    return copy(is, os, checksums, null);
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, updating {@code digests}
+   * with the copied bytes on the way.
+   *
+   * @see #copy(InputStream, OutputStream, Checksum[], MessageDigest[])
+   */
+  public static long copy(InputStream is, OutputStream os, MessageDigest... digests)
+      throws IOException {
+    return copy(is, os, null, digests);
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, updating {@code checksums}
+   * and {@code digests} with the copied bytes on the way.
+   * So the copied bytes don't need to be read again to verify them.
+   * <p>
+   * {@code checksums} and {@code digests} are not reset before copying.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param os the {@code OutputStream} to write to, may be null
+   * @param checksums the checksums to update, may be null
+   * @param digests the digests to update, may be null
+   * @return the number of bytes copied, or 0 if {@code is} or {@code os} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static long copy(InputStream is, OutputStream os, Checksum[] checksums,
+      MessageDigest[] digests) throws IOException {
+    if (is == null || os == null) return 0;
+    byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+    long count = 0;
+    int n;
+    while ((n = is.read(buffer)) != EOF) {
+      os.write(buffer, 0, n);
+      update(checksums, digests, buffer, n);
+      count += n;
+    }
+    return count;
+  }
+
+  /**
+   * Updates {@code checksums} and {@code digests} with the first {@code length} bytes.
+   */
+  private static void update(Checksum[] checksums, MessageDigest[] digests,
+      byte[] buffer, int length) {
+    if (checksums != null) {
+      for (Checksum checksum: checksums) {
+        checksum.update(buffer, 0, length);
+      }
+    }
+    if (digests != null) {
+      for (MessageDigest digest: digests) {
+        digest.update(buffer, 0, length);
+      }
+    }
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, reading on a new background thread
+   * while writing on the current thread.
+   *
+   * @see #copyPipelined(InputStream, OutputStream, Executor, BufferPool, int)
+   */
+  public static long copyPipelined(InputStream is, OutputStream os) throws IOException {
+    return copyPipelined(is, os, null, null, DEFAULT_PIPELINE_BUFFER_COUNT);
+  }
+
+  /**
+   * Copies all bytes from {@code is} to {@code os}, reading on a background thread
+   * while writing on the current thread. It helps if both {@code is} and {@code os} are slow,
+   * for example, {@code is} is a decompressor and {@code os} writes to a disk.
+   * <p>
+   * The two threads hand off {@code bufferCount} buffers.
+   * If reading fails, the exception is thrown on the current thread.
+   * If writing fails or the current thread is interrupted, reading is stopped
+   * as soon as the pending {@code read()} returns, and {@code is} might have been read
+   * more than written. An interruption is thrown as {@link InterruptedIOException}.
+   * <p>
+   * {@code executor} must run the reading task on another thread. If it runs the task
+   * on the current thread, for example a direct executor, or a {@code ThreadPoolExecutor}
+   * with {@code CallerRunsPolicy} which is saturated, the bytes are copied on the current
+   * thread without pipelining.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param os the {@code OutputStream} to write to, may be null
+   * @param executor the executor to run the reading task on another thread,
+   *                 or {@code null} to start a new thread
+   * @param pool the pool to borrow buffers from, or {@code null} to allocate buffers
+   * @param bufferCount the number of buffers, at least 2
+   * @return the number of bytes copied, or 0 if {@code is} or {@code os} is null
+   * @throws IOException if an I/O error occurs
+   * @throws IllegalArgumentException if {@code bufferCount} is less than 2
+   */
+  public static long copyPipelined(InputStream is, OutputStream os, Executor executor,
+      BufferPool pool, int bufferCount) throws IOException {
+    if (bufferCount < 2) {
+      throw new IllegalArgumentException("bufferCount < 2: " + bufferCount);
+    }
+    if (is == null || os == null) return 0;
+    return new Pipeline(is, os, pool, bufferCount).copy(executor);
+  }
+
+  /**
+   * Copies all bytes from {@code in} to {@code out}. Both channels should be in blocking mode.
+   * <p>
+   * If {@code in} is a {@link FileChannel}, bytes are copied with
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, unless it isn't seekable.
+   * If {@code out} is a {@link FileChannel}, bytes are copied with
+   * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+   * Otherwise, bytes are copied through a buffer.
+   * The positions of file channels are advanced as if they were read or written.
+   *
+   * @param in the {@code ReadableByteChannel} to read from, may be null
+   * @param out the {@code WritableByteChannel} to write to, may be null
+   * @return the number of bytes copied, or 0 if {@code in} or {@code out} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static long transfer(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+    if (in == null || out == null) return 0;
+    if (in instanceof FileChannel) {
+      return transferTo((FileChannel) in, out);
+    } else if (out instanceof FileChannel && isBlocking(in)) {
+      return transferFrom(in, (FileChannel) out);
+    } else {
+      return copyBuffered(in, out);
+    }
+  }
+
+  private static boolean isBlocking(Channel channel) {
+    return !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+  }
+
+  private static long transferTo(FileChannel in, WritableByteChannel out) throws IOException {
+    long position;
+    long size;
+    try {
+      position = in.position();
+      size = in.size();
+    } catch (IOException e) {
+      // Not seekable, a pipe for example
+      return copyBuffered(in, out);
+    }
+    long count = 0;
+    while (position < size) {
+      long n = in.transferTo(position, Math.min(size - position, MAX_TRANSFER_SIZE), out);
+      if (n <= 0) break;
+      position += n;
+      count += n;
+    }
+    // transferTo() doesn't change the position
+    in.position(position);
+    // The file might grow while copying
+    return count + copyBuffered(in, out);
+  }
+
+  private static long transferFrom(ReadableByteChannel in, FileChannel out) throws IOException {
+    long position = out.position();
+    long count = 0;
+    long n;
+    // transferFrom() returns 0 only if the blocking channel reaches the end of stream
+    while ((n = out.transferFrom(in, position, MAX_TRANSFER_SIZE)) > 0) {
+      position += n;
+      count += n;
+    }
+    // transferFrom() doesn't change the position
+    out.position(position);
+    return count;
+  }
+
+  private static long copyBuffered(ReadableByteChannel in, WritableByteChannel out)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    long count = 0;
+    int n;
+    while ((n = in.read(buffer)) != EOF) {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      buffer.clear();
+      count += n;
+    }
+    return count;
+  }
+
   /**
    * Reads all bytes from {@code is} as a UTF-8 {@link String}.
    *
@@ -92,7 +377,7 @@ public final class IOUtils {
    */
   public static String toString(InputStream is, Charset charset) throws IOException {
     if (is == null || charset == null) return null;
-    return toString(is, charset.name());
+    return decode(is, charset, new byte[DEFAULT_BUFFER_SIZE], 0);
   }
 
   /**
@@ -105,13 +390,51 @@ public final class IOUtils {
    */
   public static String toString(InputStream is, String charsetName) throws IOException {
     if (is == null || charsetName == null) return null;
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    copy(is, os);
-    return os.toString(charsetName);
+    return toString(is, forName(charsetName));
+  }
+
+  /**
+   * Looks up the charset, the result is cached.
+   */
+  private static Charset forName(String charsetName) throws UnsupportedEncodingException {
+    Charset charset = CHARSETS.get(charsetName);
+    if (charset == null) {
+      try {
+        charset = Charset.forName(charsetName);
+      } catch (IllegalArgumentException e) {
+        // IllegalCharsetNameException or UnsupportedCharsetException
+        throw new UnsupportedEncodingException(charsetName);
+      }
+      CHARSETS.put(charsetName, charset);
+    }
+    return charset;
+  }
+
+  /**
+   * Decodes all bytes from {@code is} chunk by chunk.
+   * The first {@code count} bytes of {@code buffer} have been read from {@code is}.
+   */
+  private static String decode(InputStream is, Charset charset, byte[] buffer, int count)
+      throws IOException {
+    Decoder decoder = DECODER.get();
+    if (decoder == null) {
+      // Reentrant call, don't share the decoder
+      decoder = new Decoder();
+    } else {
+      DECODER.set(null);
+    }
+    try {
+      return decoder.decode(is, charset, buffer, count);
+    } finally {
+      DECODER.set(decoder);
+    }
   }
 
   /**
    * Reads all bytes from {@code is}.
+   * <p>
+   * If {@code is} is exactly a {@link FileInputStream},
+   * the bytes are read as {@link #readAll(FileChannel)} does.
    *
    * @param is the {@code InputStream} to read from, may be null
    * @return the requested byte array, or {@code null} if {@code is} is null
@@ -119,8 +442,684 @@ public final class IOUtils {
    */
   public static byte[] toByteArray(InputStream is) throws IOException {
     if (is == null) return null;
+    if (is.getClass() == FileInputStream.class) {
+      return readAll(((FileInputStream) is).getChannel());
+    }
     ByteArrayOutputStream os = new ByteArrayOutputStream();
     copy(is, os);
     return os.toByteArray();
   }
+
+  /**
+   * Reads all bytes from {@code is}, expecting {@code expectedLength} bytes.
+   * <p>
+   * The bytes are read directly into an array of {@code expectedLength}.
+   * If the stream ends earlier, the array is trimmed.
+   * If the stream is longer, the remaining bytes are read too.
+   * <p>
+   * {@code expectedLength} is allocated up front, don't pass an untrusted value.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param expectedLength the expected length, or a negative value if unknown
+   * @return the requested byte array, or {@code null} if {@code is} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] toByteArray(InputStream is, long expectedLength) throws IOException {
+    if (is == null) return null;
+    if (expectedLength < 0 || expectedLength > MAX_ARRAY_SIZE) return toByteArray(is);
+
+    byte[] bytes = new byte[(int) expectedLength];
+    int n = fill(is, bytes);
+    if (n < bytes.length) {
+      return Arrays.copyOf(bytes, n);
+    }
+
+    int b = is.read();
+    if (b == EOF) {
+      return bytes;
+    }
+
+    // Longer than expected
+    ByteArrayOutputStream os = new ByteArrayOutputStream(
+        (int) Math.min((long) bytes.length + DEFAULT_BUFFER_SIZE, MAX_ARRAY_SIZE));
+    os.write(bytes);
+    os.write(b);
+    copy(is, os);
+    return os.toByteArray();
+  }
+
+  /**
+   * Reads all bytes from the current position of {@code channel} to the end.
+   * The remaining size of the channel is used to size the array.
+   * If the file grows while reading, the extra bytes are read too.
+   * If the channel isn't seekable, a pipe for example, it's read through a buffer.
+   *
+   * @param channel the {@code FileChannel} to read from, may be null
+   * @return the requested byte array, or {@code null} if {@code channel} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] readAll(FileChannel channel) throws IOException {
+    if (channel == null) return null;
+    long remaining;
+    try {
+      remaining = Math.max(channel.size() - channel.position(), 0);
+    } catch (IOException e) {
+      // Not seekable, a pipe for example
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      copyBuffered(channel, Channels.newChannel(os));
+      return os.toByteArray();
+    }
+    if (remaining > MAX_ARRAY_SIZE) {
+      throw new IOException("File is too large: " + remaining);
+    }
+
+    byte[] bytes = new byte[(int) remaining];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.position() < bytes.length) {
+      // Limit the size of each read, channels copy heap buffers through
+      // temporary direct buffers as large as the remaining bytes
+      buffer.limit(Math.min(buffer.position() + MAX_READ_SIZE, buffer.capacity()));
+      if (channel.read(buffer) == EOF) break;
+    }
+    if (buffer.position() < bytes.length) {
+      return Arrays.copyOf(bytes, buffer.position());
+    }
+
+    // Check whether the file grows
+    ByteBuffer probe = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    if (channel.read(probe) == EOF) {
+      return bytes;
+    }
+    ByteArrayOutputStream os = new ByteArrayOutputStream(
+        (int) Math.min((long) bytes.length + DEFAULT_BUFFER_SIZE * 2, MAX_ARRAY_SIZE));
+    os.write(bytes);
+    os.write(probe.array(), 0, probe.position());
+    transfer(channel, Channels.newChannel(os));
+    return os.toByteArray();
+  }
+
+  /**
+   * Reads all bytes from {@code is}, borrowing the read buffer from {@code pool}.
+   * No intermediate {@link ByteArrayOutputStream} is created
+   * if all bytes fit in the borrowed buffer.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param pool the pool to borrow the buffer from
+   * @return the requested byte array, or {@code null} if {@code is} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static byte[] toByteArray(InputStream is, BufferPool pool) throws IOException {
+    if (is == null) return null;
+    byte[] buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+    try {
+      int n = fill(is, buffer);
+      if (n < buffer.length) {
+        return Arrays.copyOf(buffer, n);
+      }
+      ByteArrayOutputStream os = new ByteArrayOutputStream(buffer.length * 2);
+      os.write(buffer, 0, n);
+      copy(is, os, buffer);
+      return os.toByteArray();
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Reads all bytes from {@code is} as a {@link String},
+   * borrowing the read buffer from {@code pool}.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param charset the charset of the requested String, may be null
+   * @param pool the pool to borrow the buffer from
+   * @return the requested String, or {@code null} if {@code is} or {@code charset} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static String toString(InputStream is, Charset charset, BufferPool pool)
+      throws IOException {
+    if (is == null || charset == null) return null;
+    byte[] buffer = pool.acquire(DEFAULT_BUFFER_SIZE);
+    try {
+      int n = fill(is, buffer);
+      if (n < buffer.length) {
+        return new String(buffer, 0, n, charset);
+      }
+      return decode(is, charset, buffer, n);
+    } finally {
+      pool.release(buffer);
+    }
+  }
+
+  /**
+   * Receives lines from {@link #readLines(InputStream, Charset, LineCallback)}.
+   */
+  public interface LineCallback {
+
+    /**
+     * Called for each line, without the line terminator.
+     * <p>
+     * {@code line} is a view of a reused buffer, it's only valid during this call.
+     * Call {@code line.toString()} to keep it.
+     *
+     * @param line the line
+     * @return {@code false} to stop reading
+     * @throws IOException to stop reading and throw it from {@code readLines()}
+     */
+    boolean onLine(CharSequence line) throws IOException;
+  }
+
+  /**
+   * Reads {@code is} line by line. A line is terminated by {@code '\n'},
+   * {@code '\r'} or {@code "\r\n"}, as {@link java.io.BufferedReader#readLine()} does.
+   * <p>
+   * The bytes are decoded into a reused char buffer, no {@code String} is created for lines.
+   * Malformed input is replaced.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param charset the charset of the lines, may be null
+   * @param callback the callback to receive lines
+   * @return the number of lines passed to {@code callback},
+   * or 0 if {@code is} or {@code charset} is null
+   * @throws IOException if an I/O error occurs
+   */
+  public static long readLines(InputStream is, Charset charset, LineCallback callback)
+      throws IOException {
+    if (is == null || charset == null) return 0;
+    return new LineScanner(charset, callback).scan(is);
+  }
+
+  /**
+   * Reads all bytes from {@code is}, failing fast if there are more than {@code maxLength} bytes.
+   * At most {@code maxLength + 1} bytes are read from {@code is}.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param maxLength the max number of bytes to read
+   * @return the requested byte array, or {@code null} if {@code is} is null
+   * @throws IOException if an I/O error occurs, or {@code is} is longer than {@code maxLength}
+   * @throws IllegalArgumentException if {@code maxLength} is negative
+   */
+  public static byte[] toByteArrayLimited(InputStream is, int maxLength) throws IOException {
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Negative maxLength: " + maxLength);
+    }
+    if (is == null) return null;
+    ByteArrayOutputStream os = new ByteArrayOutputStream(
+        Math.min(maxLength, DEFAULT_BUFFER_SIZE));
+    copy(new LimitedInputStream(is, maxLength), os, new byte[DEFAULT_BUFFER_SIZE]);
+    return os.toByteArray();
+  }
+
+  /**
+   * Reads all bytes from {@code is} as a {@link String},
+   * failing fast if there are more than {@code maxLength} bytes.
+   * At most {@code maxLength + 1} bytes are read from {@code is}.
+   *
+   * @param is the {@code InputStream} to read from, may be null
+   * @param charset the charset of the requested String, may be null
+   * @param maxLength the max number of bytes to read
+   * @return the requested String, or {@code null} if {@code is} or {@code charset} is null
+   * @throws IOException if an I/O error occurs, or {@code is} is longer than {@code maxLength}
+   * @throws IllegalArgumentException if {@code maxLength} is negative
+   */
+  public static String toStringLimited(InputStream is, Charset charset, int maxLength)
+      throws IOException {
+    if (maxLength < 0) {
+      throw new IllegalArgumentException("Negative maxLength: " + maxLength);
+    }
+    if (is == null || charset == null) return null;
+    return decode(new LimitedInputStream(is, maxLength), charset, new byte[DEFAULT_BUFFER_SIZE], 0);
+  }
+
+  /**
+   * Reads bytes into {@code buffer} until it is full or the end of stream.
+   * Returns the number of bytes read.
+   */
+  private static int fill(InputStream is, byte[] buffer) throws IOException {
+    int offset = 0;
+    int n;
+    while (offset < buffer.length && (n = is.read(buffer, offset, buffer.length - offset)) != EOF) {
+      offset += n;
+    }
+    return offset;
+  }
+
+  /**
+   * Decodes bytes to a String, reusing the {@link CharsetDecoder} and the char buffer.
+   */
+  private static final class Decoder {
+
+    private static final int MAX_SIZE_HINT = 1024 * 1024 * 8;
+
+    private CharsetDecoder decoder;
+    private final CharBuffer out = CharBuffer.allocate(DEFAULT_BUFFER_SIZE);
+
+    private CharsetDecoder getDecoder(Charset charset) {
+      if (decoder == null || !decoder.charset().equals(charset)) {
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      } else {
+        decoder.reset();
+      }
+      return decoder;
+    }
+
+    String decode(InputStream is, Charset charset, byte[] buffer, int count) throws IOException {
+      CharsetDecoder decoder = getDecoder(charset);
+      boolean asciiCompatible = charset.equals(UTF_8) || charset.equals(US_ASCII);
+
+      // Guess the size of the String to avoid expanding
+      long available = (long) count + Math.max(is.available(), 0);
+      int sizeHint = (int) Math.min(available * decoder.averageCharsPerByte(), MAX_SIZE_HINT);
+      StringBuilder sb = new StringBuilder(Math.max(sizeHint, 16));
+
+      ByteBuffer in = ByteBuffer.wrap(buffer);
+      in.position(count);
+      out.clear();
+      boolean eof = false;
+      while (!eof) {
+        if (in.hasRemaining()) {
+          int n = is.read(buffer, in.position(), in.remaining());
+          if (n == EOF) {
+            eof = true;
+          } else {
+            in.position(in.position() + n);
+          }
+        }
+        in.flip();
+        if (asciiCompatible) {
+          appendAscii(in, sb);
+        }
+        decode(decoder, in, sb, eof);
+        in.compact();
+      }
+
+      CoderResult result;
+      do {
+        result = decoder.flush(out);
+        drain(sb);
+      } while (result.isOverflow());
+
+      return sb.toString();
+    }
+
+    /**
+     * Appends the leading ASCII bytes in {@code in} to {@code sb} directly.
+     */
+    private void appendAscii(ByteBuffer in, StringBuilder sb) {
+      byte[] bytes = in.array();
+      char[] chars = out.array();
+      int position = in.position();
+      int limit = in.limit();
+      while (position < limit) {
+        int end = Math.min(limit, position + chars.length);
+        int i = position;
+        for (; i < end; i++) {
+          byte b = bytes[i];
+          if (b < 0) break;
+          chars[i - position] = (char) b;
+        }
+        sb.append(chars, 0, i - position);
+        position = i;
+        if (i < end) break;
+      }
+      in.position(position);
+    }
+
+    private void decode(CharsetDecoder decoder, ByteBuffer in, StringBuilder sb,
+        boolean endOfInput) {
+      CoderResult result;
+      do {
+        result = decoder.decode(in, out, endOfInput);
+        drain(sb);
+      } while (result.isOverflow());
+    }
+
+    private void drain(StringBuilder sb) {
+      sb.append(out.array(), 0, out.position());
+      out.clear();
+    }
+  }
+
+  /**
+   * Reads on a background thread, writes on the current thread.
+   */
+  private static final class Pipeline implements Runnable {
+
+    private static final Chunk END = new Chunk(null);
+
+    private final InputStream is;
+    private final OutputStream os;
+    private final BufferPool pool;
+
+    // Empty chunks to read into
+    private final BlockingQueue<Chunk> free;
+    // Filled chunks to write out, and END
+    private final BlockingQueue<Chunk> full;
+
+    // The thread which writes
+    private final Thread caller = Thread.currentThread();
+    // The executor runs the reader on the writing thread
+    private boolean inline;
+
+    private volatile boolean cancelled;
+    private volatile Throwable readError;
+
+    Pipeline(InputStream is, OutputStream os, BufferPool pool, int bufferCount) {
+      this.is = is;
+      this.os = os;
+      this.pool = pool;
+      this.free = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+      this.full = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+      for (int i = 0; i < bufferCount; i++) {
+        byte[] buffer = pool != null ? pool.acquire(DEFAULT_BUFFER_SIZE)
+            : new byte[DEFAULT_BUFFER_SIZE];
+        free.add(new Chunk(buffer));
+      }
+    }
+
+    private void releaseFree() {
+      if (pool != null) {
+        for (Chunk chunk: free) {
+          pool.release(chunk.buffer);
+        }
+      }
+    }
+
+    long copy(Executor executor) throws IOException {
+      boolean submitted = false;
+      try {
+        if (executor != null) {
+          executor.execute(this);
+        } else {
+          Thread thread = new Thread(this, "IOUtils-copyPipelined");
+          thread.setDaemon(true);
+          thread.start();
+        }
+        submitted = true;
+      } finally {
+        if (!submitted) {
+          // The reader never runs, all chunks are free
+          releaseFree();
+        }
+      }
+
+      if (inline) {
+        // The reader would wait for free chunks forever, copy without pipelining
+        try {
+          return IOUtils.copy(is, os, free.peek().buffer);
+        } finally {
+          releaseFree();
+        }
+      }
+
+      boolean succeeded = false;
+      try {
+        long count = 0;
+        for (;;) {
+          Chunk chunk = full.take();
+          if (chunk == END) break;
+          os.write(chunk.buffer, 0, chunk.length);
+          count += chunk.length;
+          free.put(chunk);
+        }
+
+        Throwable e = readError;
+        if (e != null) {
+          if (e instanceof IOException) throw (IOException) e;
+          if (e instanceof RuntimeException) throw (RuntimeException) e;
+          if (e instanceof Error) throw (Error) e;
+          throw new IOException(e.toString());
+        }
+
+        succeeded = true;
+        return count;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Copy interrupted");
+      } finally {
+        if (succeeded) {
+          // The reader has quit, all chunks are free
+          releaseFree();
+        } else {
+          // Wake up the reader if it's waiting for a chunk.
+          // The buffers are left to the garbage collector.
+          cancelled = true;
+          free.offer(END);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      if (Thread.currentThread() == caller) {
+        // Direct executor, or CallerRunsPolicy of a saturated pool
+        inline = true;
+        return;
+      }
+      try {
+        for (;;) {
+          Chunk chunk = free.take();
+          if (cancelled || chunk == END) return;
+          int n = is.read(chunk.buffer);
+          if (n == EOF || cancelled) {
+            free.offer(chunk);
+            break;
+          }
+          chunk.length = n;
+          full.put(chunk);
+        }
+      } catch (Throwable e) {
+        readError = e;
+      }
+      // Capacity of full is larger than the number of chunks, never blocks
+      full.offer(END);
+    }
+  }
+
+  private static final class Chunk {
+
+    final byte[] buffer;
+    int length;
+
+    Chunk(byte[] buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Throws an {@code IOException} if the wrapped stream has more bytes than the limit.
+   */
+  private static final class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.limit = limit;
+      this.remaining = limit;
+    }
+
+    private void checkEnd() throws IOException {
+      if (in.read() != EOF) {
+        throw new IOException("Stream is longer than the limit: " + limit);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        checkEnd();
+        return EOF;
+      }
+      int b = in.read();
+      if (b != EOF) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      if (remaining == 0) {
+        checkEnd();
+        return EOF;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /**
+   * Decodes bytes into a reused char buffer and cuts lines.
+   */
+  private static final class LineScanner {
+
+    private final CharsetDecoder decoder;
+    private final LineCallback callback;
+
+    private char[] chars = new char[DEFAULT_BUFFER_SIZE];
+    // The decoding target
+    private CharBuffer out = CharBuffer.wrap(chars);
+    // The view of the current line
+    private CharBuffer view = CharBuffer.wrap(chars);
+    // The start of the current line
+    private int start;
+    // The end of decoded chars
+    private int end;
+    // Skip '\n' if the last char is '\r'
+    private boolean skipLf;
+
+    private long count;
+    private boolean stopped;
+
+    LineScanner(Charset charset, LineCallback callback) {
+      this.decoder = charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.callback = callback;
+    }
+
+    long scan(InputStream is) throws IOException {
+      byte[] bytes = new byte[DEFAULT_BUFFER_SIZE];
+      ByteBuffer in = ByteBuffer.wrap(bytes);
+      boolean eof = false;
+      while (!eof && !stopped) {
+        int n = is.read(bytes, in.position(), in.remaining());
+        if (n == EOF) {
+          eof = true;
+        } else {
+          in.position(in.position() + n);
+        }
+        in.flip();
+        CoderResult result;
+        do {
+          out.clear();
+          out.position(end);
+          result = decoder.decode(in, out, eof);
+          end = out.position();
+          cut();
+          if (stopped) return count;
+          makeRoom(result.isOverflow());
+        } while (result.isOverflow());
+        in.compact();
+      }
+
+      CoderResult result;
+      do {
+        out.clear();
+        out.position(end);
+        result = decoder.flush(out);
+        end = out.position();
+        cut();
+        if (stopped) return count;
+        makeRoom(result.isOverflow());
+      } while (result.isOverflow());
+
+      // The last line without terminator
+      if (start < end) {
+        emit(end);
+      }
+      return count;
+    }
+
+    /**
+     * Passes all complete lines in the buffer to the callback.
+     */
+    private void cut() throws IOException {
+      int i = start;
+      if (skipLf && i < end) {
+        skipLf = false;
+        if (chars[i] == '\n') {
+          start = ++i;
+        }
+      }
+      for (; i < end && !stopped; i++) {
+        char c = chars[i];
+        if (c == '\n' || c == '\r') {
+          emit(i);
+          start = i + 1;
+          if (c == '\r') {
+            if (i + 1 < end) {
+              if (chars[i + 1] == '\n') {
+                start = ++i + 1;
+              }
+            } else {
+              skipLf = true;
+            }
+          }
+        }
+      }
+    }
+
+    private void emit(int lineEnd) throws IOException {
+      view.clear();
+      view.limit(lineEnd);
+      view.position(start);
+      count++;
+      if (!callback.onLine(view)) {
+        stopped = true;
+      }
+    }
+
+    /**
+     * Moves the current line to the start of the buffer, or expands the buffer,
+     * if the buffer is full, or the decoder needs more room than left,
+     * for example a surrogate pair with only one slot.
+     */
+    private void makeRoom(boolean overflow) {
+      if (!overflow && end < chars.length) return;
+      if (start == 0) {
+        chars = Arrays.copyOf(chars, chars.length * 2);
+        out = CharBuffer.wrap(chars);
+        view = CharBuffer.wrap(chars);
+      } else {
+        System.arraycopy(chars, start, chars, 0, end - start);
+        end -= start;
+        start = 0;
+      }
+    }
+  }
 }
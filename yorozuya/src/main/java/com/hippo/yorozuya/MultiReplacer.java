@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replaces many search strings at once, like
+ * {@link StringUtils#replaceEach(String, String[], String[])}, but the search strings
+ * are compiled to an Aho-Corasick automaton, so the text is scanned once
+ * no matter how many search strings there are.
+ * <p>
+ * The result is the same as {@code replaceEach}. The match which starts first wins.
+ * If more than one search string starts at the same index, the one with
+ * the lowest index in the search list wins. Replaced text isn't searched again.
+ * Null or empty search strings, and search strings with null replacements, are ignored.
+ * <p>
+ * Build it once and reuse it. It's immutable and thread-safe.
+ */
+public final class MultiReplacer {
+
+  // Search lists shorter than it are searched with String.indexOf()
+  static final int MIN_SEARCH_COUNT = 8;
+  // Building the automaton doesn't pay off for texts shorter than it
+  static final int MIN_TEXT_LENGTH = 1024;
+
+  private static final int ROOT = 0;
+  private static final int NONE = -1;
+
+  private final String[] searchList;
+  private final String[] replacementList;
+  private final int timeToLive;
+
+  // Children of node i are childKeys[childStart[i], childStart[i + 1]), sorted
+  private final int[] childStart;
+  private final char[] childKeys;
+  private final int[] childNodes;
+  private final int[] fail;
+  private final int[] depth;
+  // The lowest search index ending at the node, or NONE
+  private final int[] match;
+  // The nearest node on the fail chain with a match, or NONE
+  private final int[] dictLink;
+
+  /**
+   * Compiles the search strings.
+   *
+   * @param searchList the strings to search for, no-op if null
+   * @param replacementList the strings to replace them with, no-op if null
+   * @throws IllegalArgumentException if the lengths of the arrays are not the same
+   *                                  (null is ok, and/or size 0)
+   */
+  public MultiReplacer(String[] searchList, String[] replacementList) {
+    if (searchList == null || searchList.length == 0
+        || replacementList == null || replacementList.length == 0) {
+      searchList = new String[0];
+      replacementList = new String[0];
+    } else if (searchList.length != replacementList.length) {
+      throw new IllegalArgumentException("Search and Replace array lengths don't match: "
+          + searchList.length + " vs " + replacementList.length);
+    }
+    this.searchList = searchList.clone();
+    this.replacementList = replacementList.clone();
+    this.timeToLive = searchList.length;
+
+    // Build the trie
+    List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+    List<Integer> matches = new ArrayList<Integer>();
+    children.add(new TreeMap<Character, Integer>());
+    matches.add(NONE);
+    for (int i = 0; i < this.searchList.length; i++) {
+      String search = this.searchList[i];
+      if (search == null || search.isEmpty() || this.replacementList[i] == null) {
+        continue;
+      }
+      int node = ROOT;
+      for (int j = 0, n = search.length(); j < n; j++) {
+        Character c = search.charAt(j);
+        Integer child = children.get(node).get(c);
+        if (child == null) {
+          child = children.size();
+          children.add(new TreeMap<Character, Integer>());
+          matches.add(NONE);
+          children.get(node).put(c, child);
+        }
+        node = child;
+      }
+      // The first one wins for duplicated search strings
+      if (matches.get(node) == NONE) {
+        matches.set(node, i);
+      }
+    }
+
+    // Flatten it
+    int nodeCount = children.size();
+    childStart = new int[nodeCount + 1];
+    childKeys = new char[nodeCount - 1];
+    childNodes = new int[nodeCount - 1];
+    match = new int[nodeCount];
+    int offset = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      childStart[i] = offset;
+      for (Map.Entry<Character, Integer> entry : children.get(i).entrySet()) {
+        childKeys[offset] = entry.getKey();
+        childNodes[offset] = entry.getValue();
+        offset++;
+      }
+      match[i] = matches.get(i);
+    }
+    childStart[nodeCount] = offset;
+
+    // Fail links, breadth-first, so fail links of shallower nodes are ready
+    fail = new int[nodeCount];
+    depth = new int[nodeCount];
+    dictLink = new int[nodeCount];
+    dictLink[ROOT] = NONE;
+    int[] queue = new int[nodeCount];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = ROOT;
+    while (head < tail) {
+      int node = queue[head++];
+      for (int i = childStart[node], end = childStart[node + 1]; i < end; i++) {
+        char c = childKeys[i];
+        int child = childNodes[i];
+        depth[child] = depth[node] + 1;
+        int f = ROOT;
+        if (node != ROOT) {
+          f = fail[node];
+          int next;
+          while ((next = child(f, c)) == NONE && f != ROOT) {
+            f = fail[f];
+          }
+          f = next == NONE ? ROOT : next;
+        }
+        fail[child] = f;
+        dictLink[child] = match[f] != NONE ? f : dictLink[f];
+        queue[tail++] = child;
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if replacing {@code searchList} in {@code text}
+   * with a {@code MultiReplacer} is faster than the {@link String#indexOf(String)} loop
+   * of {@link StringUtils#replaceEach(String, String[], String[])},
+   * even if it's only used once.
+   */
+  static boolean isWorthwhile(String[] searchList, String text) {
+    return searchList.length >= MIN_SEARCH_COUNT && text.length() >= MIN_TEXT_LENGTH;
+  }
+
+  private int child(int node, char c) {
+    int low = childStart[node];
+    int high = childStart[node + 1] - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      char key = childKeys[mid];
+      if (key < c) {
+        low = mid + 1;
+      } else if (key > c) {
+        high = mid - 1;
+      } else {
+        return childNodes[mid];
+      }
+    }
+    return NONE;
+  }
+
+  private int next(int node, char c) {
+    for (;;) {
+      int child = child(node, c);
+      if (child != NONE) return child;
+      if (node == ROOT) return ROOT;
+      node = fail[node];
+    }
+  }
+
+  /**
+   * Replaces all occurrences of the search strings.
+   *
+   * @param text the text to search and replace in, no-op if null
+   * @return the text with any replacements processed, {@code text} itself
+   *         if nothing is replaced
+   * @see StringUtils#replaceEach(String, String[], String[])
+   */
+  public String replace(String text) {
+    if (text == null || text.isEmpty() || childKeys.length == 0) {
+      return text;
+    }
+
+    StringBuilder buf = null;
+    // Text before it is copied to buf
+    int copied = 0;
+    int bestStart = NONE;
+    int bestIndex = NONE;
+    int state = ROOT;
+    int i = 0;
+    final int length = text.length();
+    while (i < length || bestIndex != NONE) {
+      if (i < length) {
+        state = next(state, text.charAt(i));
+        // The longest match ending here starts first
+        int node = match[state] != NONE ? state : dictLink[state];
+        if (node != NONE) {
+          int start = i + 1 - depth[node];
+          int index = match[node];
+          if (bestIndex == NONE || start < bestStart || (start == bestStart && index < bestIndex)) {
+            bestStart = start;
+            bestIndex = index;
+          }
+        }
+        i++;
+      }
+
+      // No later match could start at or before bestStart
+      if (bestIndex != NONE && (i == length || bestStart < i - depth[state])) {
+        if (buf == null) {
+          buf = new StringBuilder(length + (length >> 4));
+        }
+        buf.append(text, copied, bestStart).append(replacementList[bestIndex]);
+        copied = bestStart + searchList[bestIndex].length();
+        // Search again after the match
+        i = copied;
+        state = ROOT;
+        bestIndex = NONE;
+      }
+    }
+
+    if (buf == null) {
+      return text;
+    }
+    return buf.append(text, copied, length).toString();
+  }
+
+  /**
+   * Replaces all occurrences of the search strings, again and again,
+   * until nothing is replaced.
+   *
+   * @param text the text to search and replace in, no-op if null
+   * @return the text with any replacements processed
+   * @throws IllegalStateException if there is an endless loop due to
+   *                               outputs of one being inputs to another
+   * @see StringUtils#replaceEachRepeatedly(String, String[], String[])
+   */
+  public String replaceRepeatedly(String text) {
+    return replaceRepeatedly(text, timeToLive);
+  }
+
+  String replaceRepeatedly(String text, int timeToLive) {
+    for (;;) {
+      if (text == null || text.isEmpty()) {
+        return text;
+      }
+      if (timeToLive < 0) {
+        throw new IllegalStateException("Aborting to protect against StackOverflowError - " +
+            "output of one loop is the input of another");
+      }
+      String result = replace(text);
+      if (result == text) {
+        return text;
+      }
+      text = result;
+      timeToLive--;
+    }
+  }
+}
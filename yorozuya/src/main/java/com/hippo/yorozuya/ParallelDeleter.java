@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes a directory tree in parallel. Each directory is a task.
+ * A directory is deleted by the task which completes its last child.
+ */
+final class ParallelDeleter {
+
+  private final TaskTree tasks;
+  private final AtomicLong deletedCount = new AtomicLong();
+  private final ConcurrentLinkedQueue<File> failures = new ConcurrentLinkedQueue<File>();
+
+  ParallelDeleter(Executor executor) {
+    this.tasks = new TaskTree(executor);
+  }
+
+  FileUtils.DeleteResult delete(File file) throws InterruptedException {
+    submit(new Node(file, null));
+    tasks.await();
+    return new FileUtils.DeleteResult(deletedCount.get(), new ArrayList<File>(failures));
+  }
+
+  private void submit(final Node node) {
+    tasks.execute(new Runnable() {
+      @Override
+      public void run() {
+        process(node);
+      }
+    });
+  }
+
+  private void process(Node node) {
+    File file = node.file;
+    // Files and empty directories are deleted at the first try
+    if (file.delete()) {
+      deletedCount.incrementAndGet();
+      node.complete();
+      return;
+    }
+
+    String[] names = file.list();
+
+    if (names == null) {
+      // Not a directory, or can't list it
+      if (file.exists()) {
+        failures.add(file);
+      }
+      node.complete();
+      return;
+    }
+
+    node.listed = true;
+    for (String name: names) {
+      File child = new File(file, name);
+      if (child.delete()) {
+        // Delete files inline, don't bother the executor
+        deletedCount.incrementAndGet();
+      } else {
+        submit(new Node(child, node));
+      }
+    }
+    node.complete();
+  }
+
+  private final class Node extends TaskTree.Node<Node> {
+
+    final File file;
+    // Children are submitted, delete it after them
+    boolean listed;
+
+    Node(File file, Node parent) {
+      super(parent);
+      this.file = file;
+    }
+
+    @Override
+    void onComplete() {
+      if (!listed) return;
+      if (file.delete()) {
+        deletedCount.incrementAndGet();
+      } else if (file.exists()) {
+        failures.add(file);
+      }
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A thread-safe bounded cache of compiled {@link Pattern}s, keyed by regex and flags.
+ * <p>
+ * Lookups don't lock. If the cache is full, the least recently used pattern
+ * is evicted. Recency is approximate, patterns used since the last
+ * compilation count as equally recent.
+ * <p>
+ * {@link StringUtils} regex methods use {@link StringUtils#getPatternCache()}.
+ */
+public final class PatternCache {
+
+  private final int maxSize;
+  private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<Key, Entry>();
+  private final AtomicLong clock = new AtomicLong();
+  private final Object evictLock = new Object();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * Creates a pattern cache.
+   *
+   * @param maxSize the max number of patterns
+   * @throws IllegalArgumentException if {@code maxSize} isn't positive
+   */
+  public PatternCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    }
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the compiled {@code regex} without flags.
+   *
+   * @see #get(String, int)
+   */
+  public Pattern get(String regex) {
+    return get(regex, 0);
+  }
+
+  /**
+   * Returns the compiled {@code regex} with {@code flags}, compiles it if not cached.
+   *
+   * @param regex the regex, not null
+   * @param flags the flags, see {@link Pattern#compile(String, int)}
+   * @return the pattern
+   * @throws java.util.regex.PatternSyntaxException if the syntax of {@code regex} is invalid
+   */
+  public Pattern get(String regex, int flags) {
+    Key key = new Key(regex, flags);
+    Entry entry = map.get(key);
+    if (entry != null) {
+      entry.lastAccess = clock.get();
+      hitCount.incrementAndGet();
+      return entry.pattern;
+    }
+    missCount.incrementAndGet();
+    return put(key, Pattern.compile(regex, flags));
+  }
+
+  /**
+   * Compiles {@code regex} with {@code flags} and puts it in the cache,
+   * so the first use doesn't compile it. Call it at startup.
+   *
+   * @return the pattern
+   * @throws java.util.regex.PatternSyntaxException if the syntax of {@code regex} is invalid
+   */
+  public Pattern precompile(String regex, int flags) {
+    Key key = new Key(regex, flags);
+    Entry entry = map.get(key);
+    if (entry != null) return entry.pattern;
+    return put(key, Pattern.compile(regex, flags));
+  }
+
+  private Pattern put(Key key, Pattern pattern) {
+    Entry entry = new Entry(pattern, clock.incrementAndGet());
+    Entry old = map.putIfAbsent(key, entry);
+    if (old != null) {
+      // Compiled by another thread at the same time
+      return old.pattern;
+    }
+    if (map.size() > maxSize) {
+      evict();
+    }
+    return pattern;
+  }
+
+  private void evict() {
+    synchronized (evictLock) {
+      while (map.size() > maxSize) {
+        Key eldestKey = null;
+        long eldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<Key, Entry> e : map.entrySet()) {
+          long access = e.getValue().lastAccess;
+          if (access < eldestAccess) {
+            eldestAccess = access;
+            eldestKey = e.getKey();
+          }
+        }
+        if (eldestKey == null || map.remove(eldestKey) == null) break;
+        evictionCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Returns the max number of patterns.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the number of cached patterns.
+   */
+  public int size() {
+    return map.size();
+  }
+
+  /**
+   * Returns the number of lookups served by a cached pattern.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of lookups which compiled the pattern.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of evicted patterns.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Drops all patterns. Stats are kept.
+   */
+  public void clear() {
+    map.clear();
+  }
+
+  private static final class Key {
+
+    final String regex;
+    final int flags;
+    final int hash;
+
+    Key(String regex, int flags) {
+      this.regex = regex;
+      this.flags = flags;
+      this.hash = 31 * regex.hashCode() + flags;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) return true;
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return flags == other.flags && regex.equals(other.regex);
+    }
+  }
+
+  private static final class Entry {
+
+    final Pattern pattern;
+    volatile long lastAccess;
+
+    Entry(Pattern pattern, long lastAccess) {
+      this.pattern = pattern;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
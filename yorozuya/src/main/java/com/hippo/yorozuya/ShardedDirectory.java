@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Spreads files over nested subdirectories, so no directory has too many children.
+ * <p>
+ * The file of a key is {@code root/<shard 1>/.../<shard depth>/key}.
+ * Each shard name is a hex index below the fan-out, picked from the hash
+ * of the key, see {@link HashCodeUtils#mix(int)}. For example, with fan-out 256
+ * and depth 2, key {@code "abc"} could be {@code root/3f/a0/abc}.
+ * Shard directories are created on demand.
+ * <p>
+ * It's thread-safe.
+ */
+public final class ShardedDirectory {
+
+  /**
+   * The max fan-out.
+   */
+  public static final int MAX_FAN_OUT = 4096;
+
+  /**
+   * Receives files in {@link #forEach(FileCallback, Executor)}.
+   */
+  public interface FileCallback {
+
+    /**
+     * Called for each file. It could be called on any thread of the executor,
+     * concurrently.
+     *
+     * @param key the key of the file, the file name
+     * @param file the file
+     */
+    void onFile(String key, File file);
+  }
+
+  private final File root;
+  private final int fanOut;
+  private final int depth;
+  private final int nameLength;
+
+  /**
+   * Creates a sharded directory.
+   *
+   * @param root the root directory
+   * @param fanOut the number of subdirectories in each directory, from 2 to {@link #MAX_FAN_OUT}
+   * @param depth the levels of subdirectories, at least 1, {@code fanOut ^ depth}
+   *              can't be larger than {@code 2 ^ 32}
+   * @throws IllegalArgumentException if {@code fanOut} or {@code depth} is invalid
+   */
+  public ShardedDirectory(File root, int fanOut, int depth) {
+    if (fanOut < 2 || fanOut > MAX_FAN_OUT) {
+      throw new IllegalArgumentException("fanOut must be in [2, " + MAX_FAN_OUT + "]: " + fanOut);
+    }
+    if (depth < 1 || Math.pow(fanOut, depth) > 0x100000000L) {
+      throw new IllegalArgumentException("Invalid depth: " + depth + ", fanOut: " + fanOut);
+    }
+    this.root = root;
+    this.fanOut = fanOut;
+    this.depth = depth;
+    this.nameLength = Integer.toHexString(fanOut - 1).length();
+  }
+
+  /**
+   * Returns the root directory.
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  /**
+   * Returns the number of subdirectories in each directory.
+   */
+  public int getFanOut() {
+    return fanOut;
+  }
+
+  /**
+   * Returns the levels of subdirectories.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  private static void checkKey(String key) {
+    if (key.length() == 0 || ".".equals(key) || "..".equals(key)
+        || key.indexOf('/') != -1 || key.indexOf(File.separatorChar) != -1) {
+      throw new IllegalArgumentException("Invalid key: \"" + key + "\"");
+    }
+  }
+
+  private String shardName(int index) {
+    String name = Integer.toHexString(index);
+    if (name.length() == nameLength) return name;
+    StringBuilder sb = new StringBuilder(nameLength);
+    for (int i = name.length(); i < nameLength; i++) {
+      sb.append('0');
+    }
+    return sb.append(name).toString();
+  }
+
+  /**
+   * Returns the shard directory of {@code key}. It's not created.
+   *
+   * @param key the key, used as the file name
+   * @throws IllegalArgumentException if {@code key} isn't a valid file name
+   */
+  public File getShard(String key) {
+    checkKey(key);
+    long hash = HashCodeUtils.mix(key.hashCode()) & 0xffffffffL;
+    File dir = root;
+    for (int i = 0; i < depth; i++) {
+      dir = new File(dir, shardName((int) (hash % fanOut)));
+      hash /= fanOut;
+    }
+    return dir;
+  }
+
+  /**
+   * Returns the file of {@code key}. The shard directory isn't created.
+   *
+   * @param key the key, used as the file name
+   * @throws IllegalArgumentException if {@code key} isn't a valid file name
+   */
+  public File getFile(String key) {
+    return new File(getShard(key), key);
+  }
+
+  /**
+   * Returns the file of {@code key}, creates its shard directory if necessary.
+   *
+   * @param key the key, used as the file name
+   * @throws IllegalArgumentException if {@code key} isn't a valid file name
+   * @throws IOException if the shard directory can't be created
+   */
+  public File prepareFile(String key) throws IOException {
+    File dir = getShard(key);
+    if (!FileUtils.ensureDir(dir)) {
+      throw new IOException("Can't create directory: " + dir);
+    }
+    return new File(dir, key);
+  }
+
+  /**
+   * Deletes the file of {@code key}.
+   *
+   * @return {@code true} if the file doesn't exist anymore
+   */
+  public boolean delete(String key) {
+    return FileUtils.delete(getFile(key));
+  }
+
+  /**
+   * Returns all existing shard directories of the last level.
+   */
+  public List<File> listShards() {
+    List<File> shards = new ArrayList<File>();
+    listShards(root, 0, shards);
+    return shards;
+  }
+
+  private void listShards(File dir, int level, List<File> shards) {
+    String[] names = dir.list();
+    if (names == null) return;
+    for (String name : names) {
+      if (name.length() != nameLength) continue;
+      File child = new File(dir, name);
+      if (level + 1 == depth) {
+        shards.add(child);
+      } else {
+        listShards(child, level + 1, shards);
+      }
+    }
+  }
+
+  /**
+   * Calls {@code callback} for each file in the shards.
+   * Shards are listed in parallel on {@code executor}. It waits for all tasks to finish.
+   *
+   * @param callback the callback, called concurrently
+   * @param executor the executor to run tasks, or null to run on the current thread
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   */
+  public void forEach(final FileCallback callback, Executor executor) throws InterruptedException {
+    List<File> shards = listShards();
+    TaskTree tasks = new TaskTree(executor);
+    for (final File shard : shards) {
+      tasks.execute(new Runnable() {
+        @Override
+        public void run() {
+          String[] names = shard.list();
+          if (names == null) return;
+          for (String name : names) {
+            File file = new File(shard, name);
+            if (file.isFile()) {
+              callback.onFile(name, file);
+            }
+          }
+        }
+      });
+    }
+    tasks.await();
+  }
+
+  /**
+   * Deletes all shards and files. The root directory is deleted too,
+   * it's created on demand again. Shards are deleted in parallel.
+   *
+   * @param executor the executor to run tasks
+   * @return the result, deleted count and failed files
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   * @see FileUtils#delete(File, Executor)
+   */
+  public FileUtils.DeleteResult clear(Executor executor) throws InterruptedException {
+    return FileUtils.delete(root, executor);
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * An {@code OutputStream} which keeps up to {@code memoryLimit} bytes in memory,
+ * and moves all bytes to a temp file once more bytes are written.
+ * The written bytes can be read back as many times as needed.
+ * <p>
+ * Call {@link #close()} after writing, then read with {@link #openInputStream()}
+ * or {@link #openChannel()}. Call {@link #delete()} to remove the temp file
+ * after reading.
+ * <p>
+ * It's not thread-safe.
+ */
+public final class SpillBuffer extends OutputStream {
+
+  private static final int INITIAL_CAPACITY = 256;
+  private static final int FILE_BUFFER_SIZE = 1024 * 8;
+
+  private final int memoryLimit;
+  private final File dir;
+
+  private byte[] memory;
+  private int memorySize;
+
+  private File file;
+  private OutputStream fileStream;
+
+  private long size;
+  private boolean closed;
+  private boolean deleted;
+
+  /**
+   * Creates a spill buffer.
+   *
+   * @param memoryLimit the max number of bytes kept in memory
+   * @param dir the directory to create the temp file in, created on demand
+   * @throws IllegalArgumentException if {@code memoryLimit} is negative
+   */
+  public SpillBuffer(int memoryLimit, File dir) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("Negative memoryLimit: " + memoryLimit);
+    }
+    this.memoryLimit = memoryLimit;
+    this.dir = dir;
+    this.memory = new byte[Math.min(memoryLimit, INITIAL_CAPACITY)];
+  }
+
+  /**
+   * Returns the number of bytes written.
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns {@code true} if the bytes have been moved to the temp file.
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * Returns the temp file, or {@code null} if not spilled.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  private void checkWritable() throws IOException {
+    if (closed) throw new IOException("SpillBuffer is closed");
+  }
+
+  private void checkReadable() throws IOException {
+    if (!closed) throw new IOException("SpillBuffer is not closed");
+    if (deleted) throw new IOException("SpillBuffer is deleted");
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkWritable();
+    if (fileStream == null && memorySize == memoryLimit) {
+      spill();
+    }
+    if (fileStream != null) {
+      fileStream.write(b);
+    } else {
+      ensureCapacity(memorySize + 1);
+      memory[memorySize++] = (byte) b;
+    }
+    size++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkWritable();
+    if (fileStream == null && len > memoryLimit - memorySize) {
+      spill();
+    }
+    if (fileStream != null) {
+      fileStream.write(b, off, len);
+    } else {
+      ensureCapacity(memorySize + len);
+      System.arraycopy(b, off, memory, memorySize, len);
+      memorySize += len;
+    }
+    size += len;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > memory.length) {
+      int newCapacity = (int) Math.min(Math.max((long) memory.length * 2, capacity), memoryLimit);
+      memory = Arrays.copyOf(memory, newCapacity);
+    }
+  }
+
+  /**
+   * Moves the bytes in memory to a temp file.
+   */
+  private void spill() throws IOException {
+    if (!FileUtils.ensureDir(dir)) {
+      throw new IOException("Can't create directory: " + dir);
+    }
+    File tempFile = File.createTempFile("spill", ".tmp", dir);
+    OutputStream os = null;
+    try {
+      os = new BufferedOutputStream(new FileOutputStream(tempFile), FILE_BUFFER_SIZE);
+      os.write(memory, 0, memorySize);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(os);
+      tempFile.delete();
+      throw e;
+    }
+    file = tempFile;
+    fileStream = os;
+    memory = null;
+    memorySize = 0;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (fileStream != null) {
+      fileStream.flush();
+    }
+  }
+
+  /**
+   * Finishes writing. The bytes can be read after closing.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    if (fileStream != null) {
+      fileStream.close();
+      fileStream = null;
+    }
+  }
+
+  /**
+   * Opens a new {@code InputStream} to read the written bytes.
+   *
+   * @throws IOException if it is not closed, or it is deleted, or an I/O error occurs
+   */
+  public InputStream openInputStream() throws IOException {
+    checkReadable();
+    if (file != null) {
+      return new FileInputStream(file);
+    } else {
+      return new ByteArrayInputStream(memory, 0, memorySize);
+    }
+  }
+
+  /**
+   * Opens a new channel to read the written bytes.
+   * It's a {@link java.nio.channels.FileChannel} if spilled,
+   * so {@link IOUtils#transfer} can copy it with {@code transferTo()}.
+   *
+   * @throws IOException if it is not closed, or it is deleted, or an I/O error occurs
+   */
+  public ReadableByteChannel openChannel() throws IOException {
+    checkReadable();
+    if (file != null) {
+      return new FileInputStream(file).getChannel();
+    } else {
+      return Channels.newChannel(new ByteArrayInputStream(memory, 0, memorySize));
+    }
+  }
+
+  /**
+   * Closes it, drops the bytes in memory and deletes the temp file.
+   * Streams and channels opened before should be closed first.
+   *
+   * @return {@code true} if the temp file doesn't exist anymore
+   */
+  public boolean delete() {
+    IOUtils.closeQuietly(this);
+    deleted = true;
+    memory = null;
+    memorySize = 0;
+    return FileUtils.delete(file);
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+/**
+ * Splits a {@code CharSequence} like {@link StringUtils#split(String, String, int)}
+ * and {@link StringUtils#splitPreserveAllTokens(String, String, int)}, but tokens
+ * are offsets in the text. No string or array is created unless {@link #token()}
+ * is called.
+ * <pre>{@code
+ * SplitTokenizer tokenizer = new SplitTokenizer(',').preserveAllTokens();
+ * for (String line : lines) {
+ *   if (tokenizer.reset(line).nth(2) && tokenizer.tokenEquals("ok")) {
+ *     ...
+ *   }
+ * }
+ * }</pre>
+ * Configure it before {@link #reset(CharSequence)}. Reuse it for many texts.
+ * It's not thread-safe.
+ */
+public final class SplitTokenizer {
+
+  private static final int MODE_WHITESPACE = 0;
+  private static final int MODE_CHAR = 1;
+  private static final int MODE_CHARS = 2;
+
+  private final int mode;
+  private final char separatorChar;
+  private final String separatorChars;
+  private int max = -1;
+  private boolean preserveAllTokens;
+
+  private CharSequence text;
+  private int length;
+  // Where to search the next token, length + 1 if no more token
+  private int position;
+  private int tokenCount;
+  private int start = -1;
+  private int end = -1;
+
+  /**
+   * Creates a tokenizer which splits on {@code separatorChar}.
+   */
+  public SplitTokenizer(char separatorChar) {
+    this.mode = MODE_CHAR;
+    this.separatorChar = separatorChar;
+    this.separatorChars = null;
+  }
+
+  /**
+   * Creates a tokenizer which splits on any of {@code separatorChars}.
+   *
+   * @param separatorChars the characters used as the delimiters,
+   *  {@code null} splits on whitespace
+   */
+  public SplitTokenizer(String separatorChars) {
+    if (separatorChars == null) {
+      this.mode = MODE_WHITESPACE;
+      this.separatorChar = 0;
+      this.separatorChars = null;
+    } else if (separatorChars.length() == 1) {
+      this.mode = MODE_CHAR;
+      this.separatorChar = separatorChars.charAt(0);
+      this.separatorChars = null;
+    } else {
+      this.mode = MODE_CHARS;
+      this.separatorChar = 0;
+      this.separatorChars = separatorChars;
+    }
+  }
+
+  /**
+   * Limits the number of tokens. The last token includes all characters
+   * after the first {@code max - 1} tokens (including separator characters).
+   *
+   * @param max the maximum number of tokens, a zero or negative value implies no limit
+   */
+  public SplitTokenizer max(int max) {
+    this.max = max;
+    return this;
+  }
+
+  /**
+   * Treats adjacent separators as empty token separators.
+   * Otherwise adjacent separators are treated as one separator.
+   */
+  public SplitTokenizer preserveAllTokens() {
+    preserveAllTokens = true;
+    return this;
+  }
+
+  /**
+   * Starts to split {@code text}. A {@code null} or empty text has no token.
+   */
+  public SplitTokenizer reset(CharSequence text) {
+    this.text = text;
+    this.length = text != null ? text.length() : 0;
+    rewind();
+    return this;
+  }
+
+  private void rewind() {
+    // Empty text has no token even if preserveAllTokens
+    position = length == 0 ? 1 : 0;
+    tokenCount = 0;
+    start = -1;
+    end = -1;
+  }
+
+  private boolean isSeparator(char c) {
+    switch (mode) {
+      case MODE_WHITESPACE:
+        return Character.isWhitespace(c);
+      case MODE_CHAR:
+        return c == separatorChar;
+      default:
+        return separatorChars.indexOf(c) >= 0;
+    }
+  }
+
+  /**
+   * Moves to the next token.
+   *
+   * @return {@code false} if there is no more token
+   */
+  public boolean next() {
+    final CharSequence text = this.text;
+    final int length = this.length;
+    int i = position;
+    if (i > length) {
+      start = -1;
+      end = -1;
+      return false;
+    }
+
+    if (!preserveAllTokens) {
+      while (i < length && isSeparator(text.charAt(i))) {
+        i++;
+      }
+      if (i == length) {
+        position = length + 1;
+        start = -1;
+        end = -1;
+        return false;
+      }
+    }
+
+    start = i;
+    if (++tokenCount == max) {
+      // The last one takes all
+      i = length;
+    } else {
+      while (i < length && !isSeparator(text.charAt(i))) {
+        i++;
+      }
+    }
+    end = i;
+    // Skip the separator, or go past the end
+    position = i + 1;
+    return true;
+  }
+
+  /**
+   * Moves to the {@code n}-th token from the start of the text.
+   *
+   * @param n the index of the token, 0-based
+   * @return {@code false} if there are not so many tokens
+   */
+  public boolean nth(int n) {
+    if (n < 0) {
+      return false;
+    }
+    rewind();
+    while (next()) {
+      if (n-- == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of tokens in the text. The tokenizer is at the end after it.
+   */
+  public int count() {
+    rewind();
+    while (next()) {
+      // Only count them
+    }
+    return tokenCount;
+  }
+
+  private void checkToken() {
+    if (start < 0) {
+      throw new IllegalStateException("No current token");
+    }
+  }
+
+  /**
+   * Returns the start offset of the current token, inclusive.
+   *
+   * @throws IllegalStateException if there is no current token
+   */
+  public int start() {
+    checkToken();
+    return start;
+  }
+
+  /**
+   * Returns the end offset of the current token, exclusive.
+   *
+   * @throws IllegalStateException if there is no current token
+   */
+  public int end() {
+    checkToken();
+    return end;
+  }
+
+  /**
+   * Returns the current token as a new string.
+   *
+   * @throws IllegalStateException if there is no current token
+   */
+  public String token() {
+    checkToken();
+    return text.subSequence(start, end).toString();
+  }
+
+  /**
+   * Returns {@code true} if the current token equals {@code cs}. No string is created.
+   *
+   * @throws IllegalStateException if there is no current token
+   */
+  public boolean tokenEquals(CharSequence cs) {
+    checkToken();
+    if (cs == null || cs.length() != end - start) {
+      return false;
+    }
+    for (int i = start, j = 0; i < end; i++, j++) {
+      if (text.charAt(i) != cs.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+/**
+ * Searches a string in texts, precompiled for the string.
+ * <p>
+ * Long patterns are searched with Boyer-Moore-Horspool, which skips
+ * up to the length of the pattern after each mismatch, so the longer the
+ * pattern, the fewer characters are read. Short patterns are searched with
+ * {@link String#indexOf(String, int)}, which is faster for them.
+ * <p>
+ * Build it once and search many texts. It's immutable and thread-safe.
+ */
+public final class StringSearcher {
+
+  // Patterns shorter than it are searched with String.indexOf()
+  static final int MIN_PATTERN_LENGTH = 16;
+  // Building the skip table doesn't pay off for texts shorter than it
+  static final int MIN_TEXT_LENGTH = 1024;
+
+  private static final int TABLE_SIZE = 256;
+  private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+  private final String pattern;
+  private final char[] chars;
+  // Shifts for the last character of the window, chars are put in buckets
+  // by the low bits, each bucket keeps the smallest shift
+  private final int[] shifts;
+
+  /**
+   * Compiles the pattern.
+   *
+   * @param pattern the string to search for
+   * @throws IllegalArgumentException if {@code pattern} is empty
+   */
+  public StringSearcher(String pattern) {
+    if (pattern.isEmpty()) {
+      throw new IllegalArgumentException("Empty pattern");
+    }
+    this.pattern = pattern;
+    int length = pattern.length();
+    if (length < MIN_PATTERN_LENGTH) {
+      chars = null;
+      shifts = null;
+      return;
+    }
+    chars = pattern.toCharArray();
+    shifts = new int[TABLE_SIZE];
+    for (int i = 0; i < TABLE_SIZE; i++) {
+      shifts[i] = length;
+    }
+    for (int i = 0; i < length - 1; i++) {
+      shifts[chars[i] & TABLE_MASK] = length - 1 - i;
+    }
+  }
+
+  /**
+   * Returns {@code true} if searching {@code pattern} in {@code text}
+   * with a {@code StringSearcher} is faster than {@link String#indexOf(String)},
+   * even if it's only used once.
+   */
+  static boolean isWorthwhile(String pattern, String text) {
+    return pattern.length() >= MIN_PATTERN_LENGTH && text.length() >= MIN_TEXT_LENGTH;
+  }
+
+  /**
+   * Returns the string to search for.
+   */
+  public String getPattern() {
+    return pattern;
+  }
+
+  /**
+   * Returns the index of the first occurrence in {@code text},
+   * or {@link StringUtils#INDEX_NOT_FOUND}.
+   */
+  public int indexOf(String text) {
+    return indexOf(text, 0);
+  }
+
+  /**
+   * Returns the index of the first occurrence in {@code text},
+   * starting at {@code fromIndex}, or {@link StringUtils#INDEX_NOT_FOUND}.
+   * It works like {@link String#indexOf(String, int)}.
+   */
+  public int indexOf(String text, int fromIndex) {
+    if (shifts == null) {
+      return text.indexOf(pattern, fromIndex);
+    }
+
+    final char[] chars = this.chars;
+    final int[] shifts = this.shifts;
+    final int lastIndex = chars.length - 1;
+    final char last = chars[lastIndex];
+    final int limit = text.length() - chars.length;
+    int i = fromIndex < 0 ? 0 : fromIndex;
+    while (i <= limit) {
+      char c = text.charAt(i + lastIndex);
+      if (c == last) {
+        int j = lastIndex - 1;
+        while (j >= 0 && text.charAt(i + j) == chars[j]) {
+          j--;
+        }
+        if (j < 0) {
+          return i;
+        }
+      }
+      i += shifts[c & TABLE_MASK];
+    }
+    return StringUtils.INDEX_NOT_FOUND;
+  }
+
+  /**
+   * Returns the number of occurrences in {@code text}, which don't overlap.
+   *
+   * @param text the text, may be null
+   */
+  public int count(String text) {
+    if (text == null) {
+      return 0;
+    }
+    int count = 0;
+    int index = 0;
+    while ((index = indexOf(text, index)) != StringUtils.INDEX_NOT_FOUND) {
+      count++;
+      index += pattern.length();
+    }
+    return count;
+  }
+
+  /**
+   * Replaces all occurrences in {@code text}.
+   *
+   * @see #replace(String, String, int)
+   */
+  public String replace(String text, String replacement) {
+    return replace(text, replacement, -1);
+  }
+
+  /**
+   * Replaces the first {@code max} occurrences in {@code text}.
+   * It works like {@link StringUtils#replace(String, String, String, int)}.
+   *
+   * @param text text to search and replace in, may be null
+   * @param replacement the String to replace it with, may be null
+   * @param max maximum number of values to replace, or {@code -1} if no maximum
+   * @return the text with any replacements processed,
+   *  {@code null} if null String input
+   */
+  public String replace(String text, String replacement, int max) {
+    if (StringUtils.isEmpty(text) || replacement == null || max == 0) {
+      return text;
+    }
+    int start = 0;
+    int end = indexOf(text, start);
+    if (end == StringUtils.INDEX_NOT_FOUND) {
+      return text;
+    }
+    final int replLength = pattern.length();
+    int increase = replacement.length() - replLength;
+    increase = increase < 0 ? 0 : increase;
+    increase *= max < 0 ? 16 : max > 64 ? 64 : max;
+    final StringBuilder buf = new StringBuilder(text.length() + increase);
+    while (end != StringUtils.INDEX_NOT_FOUND) {
+      buf.append(text, start, end).append(replacement);
+      start = end + replLength;
+      if (--max == 0) {
+        break;
+      }
+      end = indexOf(text, start);
+    }
+    buf.append(text, start, text.length());
+    return buf.toString();
+  }
+
+  /**
+   * Removes all occurrences in {@code text}.
+   *
+   * @param text text to search and remove in, may be null
+   * @return the text with the pattern removed, {@code null} if null String input
+   */
+  public String remove(String text) {
+    return replace(text, StringUtils.EMPTY, -1);
+  }
+}
@@ -41,6 +41,25 @@ public final class StringUtils {
    */
   public static final int INDEX_NOT_FOUND = -1;
 
+  private static final int PATTERN_CACHE_SIZE = 128;
+
+  private static final PatternCache PATTERN_CACHE = new PatternCache(PATTERN_CACHE_SIZE);
+
+  /**
+   * Returns the cache of compiled patterns used by regex methods,
+   * {@link #replacePattern(String, String, String)}, {@link #removePattern(String, String)},
+   * {@link #replaceAll(String, String, String)}, {@link #replaceFirst(String, String, String)},
+   * {@link #removeAll(String, String)} and {@link #removeFirst(String, String)}.
+   * It keeps at most 128 patterns.
+   * <p>
+   * Precompile patterns at startup with {@link PatternCache#precompile(String, int)},
+   * {@link Pattern#DOTALL} for {@code replacePattern} and {@code removePattern},
+   * 0 for the others.
+   */
+  public static PatternCache getPatternCache() {
+    return PATTERN_CACHE;
+  }
+
   // Empty checks
   //-----------------------------------------------------------------------
   /**
@@ -587,7 +606,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as one separator.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.</p>
    *
@@ -612,7 +631,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as one separator.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.</p>
    *
@@ -639,7 +658,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as one separator.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.
    * A {@code null} separatorChars splits on whitespace.</p>
@@ -704,7 +723,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as separators for empty tokens.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.</p>
    *
@@ -730,7 +749,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as separators for empty tokens.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.</p>
    *
@@ -765,7 +784,7 @@ public final class StringUtils {
    *
    * <p>The separator is not included in the returned String array.
    * Adjacent separators are treated as separators for empty tokens.
-   * For more control over the split use the StrTokenizer class.</p>
+   * For more control over the split use {@link SplitTokenizer}.</p>
    *
    * <p>A {@code null} input String returns {@code null}.
    * A {@code null} separatorChars splits on whitespace.</p>
@@ -1335,7 +1354,7 @@ public final class StringUtils {
     if (source == null || regex == null|| replacement == null ) {
       return source;
     }
-    return Pattern.compile(regex, Pattern.DOTALL).matcher(source).replaceAll(replacement);
+    return PATTERN_CACHE.get(regex, Pattern.DOTALL).matcher(source).replaceAll(replacement);
   }
 
   /**
@@ -1421,7 +1440,7 @@ public final class StringUtils {
     if (text == null || regex == null|| replacement == null ) {
       return text;
     }
-    return text.replaceAll(regex, replacement);
+    return PATTERN_CACHE.get(regex).matcher(text).replaceAll(replacement);
   }
 
   /**
@@ -1473,7 +1492,7 @@ public final class StringUtils {
     if (text == null || regex == null|| replacement == null ) {
       return text;
     }
-    return text.replaceFirst(regex, replacement);
+    return PATTERN_CACHE.get(regex).matcher(text).replaceFirst(replacement);
   }
 
   /**
@@ -1557,6 +1576,7 @@ public final class StringUtils {
    * @param max  maximum number of values to replace, or {@code -1} if no maximum
    * @return the text with any replacements processed,
    *  {@code null} if null String input
+   * @see StringSearcher
    */
   public static String replace(final String text, final String searchString, final String replacement, int max) {
     return replace(text, searchString, replacement, max, false);
@@ -1597,13 +1617,12 @@ public final class StringUtils {
     if (isEmpty(text) || isEmpty(searchString) || replacement == null || max == 0) {
       return text;
     }
-    String searchText = text;
-    if (ignoreCase) {
-      searchText = text.toLowerCase();
-      searchString = searchString.toLowerCase();
+    if (!ignoreCase && StringSearcher.isWorthwhile(searchString, text)) {
+      // Long search string in long text, skip with Boyer-Moore-Horspool
+      return new StringSearcher(searchString).replace(text, replacement, max);
     }
     int start = 0;
-    int end = searchText.indexOf(searchString, start);
+    int end = ignoreCase ? indexOfIgnoreCase(text, searchString, start) : text.indexOf(searchString, start);
     if (end == INDEX_NOT_FOUND) {
       return text;
     }
@@ -1613,23 +1632,66 @@ public final class StringUtils {
     increase *= max < 0 ? 16 : max > 64 ? 64 : max;
     final StringBuilder buf = new StringBuilder(text.length() + increase);
     while (end != INDEX_NOT_FOUND) {
-      buf.append(text.substring(start, end)).append(replacement);
+      buf.append(text, start, end).append(replacement);
       start = end + replLength;
       if (--max == 0) {
         break;
       }
-      end = searchText.indexOf(searchString, start);
+      end = ignoreCase ? indexOfIgnoreCase(text, searchString, start) : text.indexOf(searchString, start);
     }
     buf.append(text.substring(start));
     return buf.toString();
   }
 
+  /**
+   * Finds {@code searchString} in {@code text} from {@code start}, case insensitively.
+   * Chars are compared one by one like
+   * {@link String#regionMatches(boolean, int, String, int, int)}, so it doesn't
+   * depend on the default locale, and a match is as long as {@code searchString}.
+   */
+  private static int indexOfIgnoreCase(String text, String searchString, int start) {
+    final int searchLength = searchString.length();
+    final int limit = text.length() - searchLength;
+    final char first = searchString.charAt(0);
+    for (int i = start; i <= limit; i++) {
+      if (!equalsIgnoreCase(text.charAt(i), first)) {
+        continue;
+      }
+      int j = 1;
+      while (j < searchLength && equalsIgnoreCase(text.charAt(i + j), searchString.charAt(j))) {
+        j++;
+      }
+      if (j == searchLength) {
+        return i;
+      }
+    }
+    return INDEX_NOT_FOUND;
+  }
+
+  private static boolean equalsIgnoreCase(char c1, char c2) {
+    if (c1 == c2) {
+      return true;
+    }
+    if ((c1 | c2) < 0x80) {
+      // ASCII, only letters of different cases differ in 0x20
+      final int lower = c1 | 0x20;
+      return (c1 ^ c2) == 0x20 && lower >= 'a' && lower <= 'z';
+    }
+    final char u1 = Character.toUpperCase(c1);
+    final char u2 = Character.toUpperCase(c2);
+    return u1 == u2 || Character.toLowerCase(u1) == Character.toLowerCase(u2);
+  }
+
   /**
    * <p>Case insensitively replaces a String with another String inside a larger String,
    * for the first {@code max} values of the search String.</p>
    *
    * <p>A {@code null} reference passed to this method is a no-op.</p>
    *
+   * <p>Chars are compared one by one like {@link String#equalsIgnoreCase(String)},
+   * so the result doesn't depend on the default locale. A match is always
+   * as long as {@code searchString}, "STRASSE" doesn't match "stra\u00dfe".</p>
+   *
    * <pre>
    * StringUtils.replaceIgnoreCase(null, *, *, *)         = null
    * StringUtils.replaceIgnoreCase("", *, *, *)           = ""
@@ -1668,6 +1730,13 @@ public final class StringUtils {
    * overloaded method.
    * </p>
    *
+   * <p>
+   * It scans the text once per search string. A {@link MultiReplacer} scans it
+   * once for all of them, but building one costs more than a scan, so it's only
+   * built here for many search strings in a long text. To replace with the same
+   * lists again and again, build a {@link MultiReplacer} once and reuse it.
+   * </p>
+   *
    * <pre>
    *  StringUtils.replaceEach(null, *, *)        = null
    *  StringUtils.replaceEach("", *, *)          = ""
@@ -1693,6 +1762,7 @@ public final class StringUtils {
    * @throws IllegalArgumentException
    *             if the lengths of the arrays are not the same (null is ok,
    *             and/or size 0)
+   * @see MultiReplacer
    */
   public static String replaceEach(final String text, final String[] searchList, final String[] replacementList) {
     return replaceEach(text, searchList, replacementList, false, 0);
@@ -1738,6 +1808,7 @@ public final class StringUtils {
    * @throws IllegalArgumentException
    *             if the lengths of the arrays are not the same (null is ok,
    *             and/or size 0)
+   * @see MultiReplacer#replaceRepeatedly(String)
    */
   public static String replaceEachRepeatedly(final String text, final String[] searchList, final String[] replacementList) {
     // timeToLive should be 0 if not used or nothing to replace, else it's
@@ -1823,6 +1894,12 @@ public final class StringUtils {
           + replacementLength);
     }
 
+    // too many search strings in a long text, scan the text once with an automaton
+    if (MultiReplacer.isWorthwhile(searchList, text)) {
+      final MultiReplacer replacer = new MultiReplacer(searchList, replacementList);
+      return repeat ? replacer.replaceRepeatedly(text, timeToLive) : replacer.replace(text);
+    }
+
     // keep track of which still have matches
     final boolean[] noMoreMatchesForReplIndex = new boolean[searchLength];
 
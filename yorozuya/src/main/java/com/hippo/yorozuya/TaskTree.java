@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a tree of tasks, where tasks could execute more tasks, and waits for all of them.
+ * <p>
+ * Tasks run on the executor. If the executor is null or rejects a task,
+ * the task runs on the current thread. Tasks shouldn't block waiting for
+ * other tasks, so the executor could be any executor.
+ */
+final class TaskTree {
+
+  private final Executor executor;
+  // One for the caller, released in await()
+  private final AtomicInteger pending = new AtomicInteger(1);
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  TaskTree(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Runs {@code task} on the executor, or on the current thread
+   * if the executor is null or rejects it.
+   */
+  void execute(final Runnable task) {
+    pending.incrementAndGet();
+    Runnable wrapper = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          release();
+        }
+      }
+    };
+    if (executor == null) {
+      wrapper.run();
+      return;
+    }
+    try {
+      executor.execute(wrapper);
+    } catch (RejectedExecutionException e) {
+      wrapper.run();
+    }
+  }
+
+  private void release() {
+    if (pending.decrementAndGet() == 0) {
+      done.countDown();
+    }
+  }
+
+  /**
+   * Waits for all tasks, including the ones executed by tasks.
+   * Call it once, after executing the first tasks.
+   *
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * The remaining tasks keep running.
+   */
+  void await() throws InterruptedException {
+    release();
+    done.await();
+  }
+
+  /**
+   * A node of a tree, like a directory, which is complete after
+   * itself and all its children are complete.
+   */
+  abstract static class Node<N extends Node<N>> {
+
+    final N parent;
+    // One for the node itself
+    final AtomicInteger pending = new AtomicInteger(1);
+
+    /**
+     * Creates a node. The parent isn't complete until this node is complete.
+     */
+    Node(N parent) {
+      this.parent = parent;
+      if (parent != null) {
+        parent.pending.incrementAndGet();
+      }
+    }
+
+    /**
+     * Marks the node itself, or one of its children, complete.
+     * Calls {@link #onComplete()} and completes the parent if it's the last one.
+     */
+    final void complete() {
+      if (pending.decrementAndGet() != 0) return;
+      onComplete();
+      if (parent != null) {
+        parent.complete();
+      }
+    }
+
+    /**
+     * Called once, on the thread which completes the last one.
+     */
+    abstract void onComplete();
+  }
+}
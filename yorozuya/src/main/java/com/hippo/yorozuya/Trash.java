@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes files and directories in the background.
+ * <p>
+ * {@link #delete(File)} renames the file into the trash directory,
+ * which takes no time no matter how large the tree is. Everything
+ * in the trash directory is deleted later on the executor.
+ * If the process dies before that, {@link #open(File, Executor)} purges
+ * the leftovers on the next start.
+ * <p>
+ * Renaming only works on the same file system, put the trash directory
+ * next to the directories to delete, but not inside any of them,
+ * so disk usage of those directories doesn't include the trash.
+ * <p>
+ * It's thread-safe.
+ */
+public final class Trash {
+
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  private final File dir;
+  private final Executor executor;
+  private final AtomicLong counter = new AtomicLong();
+  private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+
+  private final Runnable purgeTask = new Runnable() {
+    @Override
+    public void run() {
+      purgeScheduled.set(false);
+      purgeNow();
+    }
+  };
+
+  private Trash(File dir, Executor executor) {
+    this.dir = dir;
+    this.executor = executor;
+  }
+
+  /**
+   * Opens a trash, and purges the files left by the last run in the background.
+   *
+   * @param dir the trash directory, created on demand
+   * @param executor the executor to purge, or null to use a low priority
+   *                 daemon thread owned by this trash
+   * @return the trash
+   */
+  public static Trash open(File dir, Executor executor) {
+    if (executor == null) {
+      executor = newPurgeExecutor();
+    }
+    Trash trash = new Trash(dir, executor);
+    trash.purge();
+    return trash;
+  }
+
+  private static Executor newPurgeExecutor() {
+    // The thread exits if idle
+    return new ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Trash-Purge");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Returns the trash directory.
+   */
+  public File getDirectory() {
+    return dir;
+  }
+
+  /**
+   * Moves {@code file} into the trash and purges it in the background.
+   * If it can't be moved, for example the trash is on another file system,
+   * it's deleted on the current thread.
+   *
+   * @param file the file or directory to delete, may be null
+   * @return {@code true} if {@code file} doesn't exist anymore, or {@code file} is null
+   * @throws IllegalArgumentException if the trash directory is {@code file} or under it
+   */
+  public boolean delete(File file) {
+    if (file == null) return true;
+    String path = file.getAbsolutePath();
+    String dirPath = dir.getAbsolutePath();
+    if (dirPath.equals(path) || dirPath.startsWith(path + File.separatorChar)) {
+      throw new IllegalArgumentException("Can't move " + file + " to trash " + dir);
+    }
+
+    if (FileUtils.ensureDir(dir)) {
+      File target = newTarget(file);
+      if (file.renameTo(target)) {
+        FileUtils.invalidate(file);
+        purge();
+        return true;
+      }
+    }
+
+    if (!file.exists()) {
+      // Nothing to delete
+      return true;
+    }
+    return FileUtils.delete(file);
+  }
+
+  private File newTarget(File file) {
+    File target;
+    do {
+      target = new File(dir, System.currentTimeMillis() + "-" + counter.incrementAndGet()
+          + "-" + file.getName());
+    } while (target.exists());
+    return target;
+  }
+
+  /**
+   * Purges the trash in the background.
+   */
+  public void purge() {
+    if (!purgeScheduled.compareAndSet(false, true)) return;
+    try {
+      executor.execute(purgeTask);
+    } catch (RejectedExecutionException e) {
+      purgeScheduled.set(false);
+    }
+  }
+
+  /**
+   * Purges the trash on the current thread.
+   *
+   * @return {@code true} if the trash is empty
+   */
+  public boolean purgeNow() {
+    return FileUtils.deleteContent(dir);
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a directory tree. The tree is walked once on the calling thread,
+ * directories are created while walking, files are copied on the executor.
+ */
+final class TreeCopier {
+
+  private final TaskTree tasks;
+  private final boolean skipUnchanged;
+
+  private final AtomicLong copiedCount = new AtomicLong();
+  private final AtomicLong skippedCount = new AtomicLong();
+  private final AtomicLong copiedBytes = new AtomicLong();
+  private final ConcurrentLinkedQueue<File> failures = new ConcurrentLinkedQueue<File>();
+
+  TreeCopier(Executor executor, boolean skipUnchanged) {
+    this.tasks = new TaskTree(executor);
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  FileUtils.CopyResult copy(File src, File dst) throws InterruptedException {
+    FileState state = FileState.of(src);
+    if (state.isDirectory()) {
+      walk(src, dst, new ArrayList<String>());
+    } else if (state.isFile()) {
+      File dir = dst.getAbsoluteFile().getParentFile();
+      if (FileUtils.ensureDir(dir)) {
+        submit(src, dst);
+      } else {
+        failures.add(src);
+      }
+    } else {
+      failures.add(src);
+    }
+    tasks.await();
+    return new FileUtils.CopyResult(copiedCount.get(), skippedCount.get(), copiedBytes.get(),
+        new ArrayList<File>(failures));
+  }
+
+  /**
+   * Walks the tree of {@code src}. {@code ancestors} are canonical paths
+   * of the directories being walked, a link to any of them isn't entered.
+   */
+  private void walk(File src, File dst, List<String> ancestors) {
+    String path = FileUtils.canonicalPath(src);
+    if (ancestors.contains(path)) {
+      // Symbolic link loop
+      failures.add(src);
+      return;
+    }
+    if (!FileUtils.ensureDir(dst)) {
+      failures.add(src);
+      return;
+    }
+    String[] names = src.list();
+    if (names == null) {
+      failures.add(src);
+      return;
+    }
+    ancestors.add(path);
+    for (String name : names) {
+      File srcChild = new File(src, name);
+      File dstChild = new File(dst, name);
+      // Most children are files, check isFile() first
+      FileState state = FileState.of(srcChild);
+      if (state.isFile()) {
+        submit(srcChild, dstChild);
+      } else if (state.isDirectory()) {
+        walk(srcChild, dstChild, ancestors);
+      }
+      // Removed while walking, ignore it
+    }
+    ancestors.remove(ancestors.size() - 1);
+  }
+
+  private void submit(final File src, final File dst) {
+    tasks.execute(new Runnable() {
+      @Override
+      public void run() {
+        copyFile(src, dst);
+      }
+    });
+  }
+
+  private void copyFile(File src, File dst) {
+    long length = src.length();
+    long lastModified = src.lastModified();
+
+    if (skipUnchanged) {
+      FileState state = FileState.of(dst);
+      if (state.isFile() && state.length() == length && state.lastModified() == lastModified) {
+        skippedCount.incrementAndGet();
+        return;
+      }
+    }
+
+    FileInputStream is = null;
+    FileOutputStream os = null;
+    try {
+      is = new FileInputStream(src);
+      os = new FileOutputStream(dst);
+      long n = IOUtils.transfer(is.getChannel(), os.getChannel());
+      os.close();
+      os = null;
+      // So it can be skipped next time
+      dst.setLastModified(lastModified);
+      copiedCount.incrementAndGet();
+      copiedBytes.addAndGet(n);
+    } catch (IOException e) {
+      failures.add(src);
+    } finally {
+      IOUtils.closeQuietly(is);
+      IOUtils.closeQuietly(os);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AtomicFileTest {
+
+  @Test
+  public void testWrite() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "dir/file");
+
+    AtomicFile.write(file, new byte[] {1, 2, 3}, false);
+    assertArrayEquals(new byte[] {1, 2, 3}, FileUtils.toByteArray(file));
+
+    // Replaces the old content
+    AtomicFile.write(file, new ByteArrayInputStream(new byte[] {4, 5}), true);
+    assertArrayEquals(new byte[] {4, 5}, FileUtils.toByteArray(file));
+
+    // No temp file is left
+    assertArrayEquals(new String[] {"file"}, file.getParentFile().list());
+  }
+
+  @Test
+  public void testOutput() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "file");
+    AtomicFile.write(file, new byte[] {1}, false);
+
+    AtomicFile.Output output = AtomicFile.openWrite(file);
+    assertEquals(file, output.getFile());
+    assertEquals(file.getAbsoluteFile().getParentFile(), output.getTempFile().getParentFile());
+    output.write(2);
+    output.write(new byte[] {3, 4}, 1, 1);
+    // The file isn't changed before commit
+    assertArrayEquals(new byte[] {1}, FileUtils.toByteArray(file));
+    output.commit(true);
+    assertArrayEquals(new byte[] {2, 4}, FileUtils.toByteArray(file));
+    assertFalse(output.getTempFile().exists());
+
+    try {
+      output.write(5);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    output.close();
+    assertArrayEquals(new byte[] {2, 4}, FileUtils.toByteArray(file));
+  }
+
+  @Test
+  public void testAbort() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "file");
+    AtomicFile.write(file, new byte[] {1}, false);
+
+    // Close without commit discards the bytes
+    AtomicFile.Output output = AtomicFile.openWrite(file);
+    output.write(2);
+    output.close();
+    assertArrayEquals(new byte[] {1}, FileUtils.toByteArray(file));
+    assertFalse(output.getTempFile().exists());
+
+    // A failed write leaves the file unchanged
+    try {
+      AtomicFile.write(file, new InputStream() {
+        @Override
+        public int read() throws IOException {
+          throw new IOException();
+        }
+      }, false);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    assertArrayEquals(new byte[] {1}, FileUtils.toByteArray(file));
+    assertArrayEquals(new String[] {"file"}, folder.getRoot().list());
+  }
+
+  @Test
+  public void testReplaceDirectory() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = folder.newFolder("file");
+    assertTrue(new File(file, "child").createNewFile());
+
+    // Can't replace a non-empty directory
+    try {
+      AtomicFile.write(file, new byte[] {1}, false);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    assertTrue(file.isDirectory());
+    assertArrayEquals(new String[] {"file"}, folder.getRoot().list());
+  }
+}
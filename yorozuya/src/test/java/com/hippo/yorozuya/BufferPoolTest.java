@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testSizeClass() {
+    BufferPool pool = new BufferPool(1024 * 64, 4, 4);
+    assertEquals(1024 * 64, pool.getMaxBufferSize());
+    assertEquals(1024, pool.acquire(0).length);
+    assertEquals(1024, pool.acquire(1).length);
+    assertEquals(1024, pool.acquire(1024).length);
+    assertEquals(2048, pool.acquire(1025).length);
+    assertEquals(1024 * 64, pool.acquire(1024 * 64).length);
+    assertEquals(1024 * 64 + 1, pool.acquire(1024 * 64 + 1).length);
+
+    assertEquals(1024, new BufferPool(0, 0, 0).getMaxBufferSize());
+    assertEquals(1024 * 4, new BufferPool(1024 * 3, 0, 0).getMaxBufferSize());
+    assertEquals(1 << 30, new BufferPool(Integer.MAX_VALUE, 0, 0).getMaxBufferSize());
+  }
+
+  @Test
+  public void testIllegalArgument() {
+    try {
+      new BufferPool(-1, 0, 0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+    try {
+      new BufferPool().acquire(-1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(1024 * 64, 1, 1);
+
+    byte[] buffer1 = pool.acquire(2000);
+    byte[] buffer2 = pool.acquire(2000);
+    byte[] buffer3 = pool.acquire(2000);
+    assertEquals(0, pool.getHitCount());
+    assertEquals(3, pool.getMissCount());
+
+    // One in thread cache, one in shared cache, one dropped
+    pool.release(buffer1);
+    pool.release(buffer2);
+    pool.release(buffer3);
+
+    assertSame(buffer1, pool.acquire(2048));
+    assertSame(buffer2, pool.acquire(1025));
+    assertNotSame(buffer3, pool.acquire(2000));
+    assertEquals(2, pool.getHitCount());
+    assertEquals(4, pool.getMissCount());
+
+    // Different size class
+    pool.release(buffer1);
+    assertNotSame(buffer1, pool.acquire(1024));
+    assertSame(buffer1, pool.acquire(2048));
+
+    // Not size class
+    pool.release(new byte[3000]);
+    pool.release(new byte[1024 * 128]);
+    pool.release(null);
+    assertEquals(2048, pool.acquire(2000).length);
+    assertEquals(3, pool.getHitCount());
+  }
+
+  @Test
+  public void testSharedCache() throws InterruptedException {
+    final BufferPool pool = new BufferPool(1024 * 64, 0, 2);
+    final byte[] buffer = pool.acquire(1024);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        pool.release(buffer);
+      }
+    };
+    thread.start();
+    thread.join();
+    assertSame(buffer, pool.acquire(1024));
+  }
+
+  @Test
+  public void testClear() {
+    BufferPool pool = new BufferPool(1024 * 64, 1, 1);
+    byte[] buffer1 = pool.acquire(1024);
+    byte[] buffer2 = pool.acquire(1024);
+    pool.release(buffer1);
+    pool.release(buffer2);
+    pool.clear();
+    byte[] buffer3 = pool.acquire(1024);
+    assertNotSame(buffer1, buffer3);
+    assertNotSame(buffer2, buffer3);
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final BufferPool pool = new BufferPool(1024 * 16, 2, 8);
+    final int threadCount = 8;
+    final int loop = 10000;
+    final CountDownLatch latch = new CountDownLatch(threadCount);
+    final AtomicBoolean failed = new AtomicBoolean();
+    for (int i = 0; i < threadCount; i++) {
+      final byte mark = (byte) i;
+      new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < loop; j++) {
+            byte[] buffer = pool.acquire(1024 * (j % 16 + 1));
+            buffer[0] = mark;
+            buffer[buffer.length - 1] = mark;
+            Thread.yield();
+            if (buffer[0] != mark || buffer[buffer.length - 1] != mark) {
+              failed.set(true);
+            }
+            pool.release(buffer);
+          }
+          latch.countDown();
+        }
+      }.start();
+    }
+    latch.await();
+    assertTrue(!failed.get());
+    assertEquals(threadCount * loop, pool.getHitCount() + pool.getMissCount());
+  }
+}
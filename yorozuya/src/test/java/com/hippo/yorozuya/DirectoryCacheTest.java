@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class DirectoryCacheTest {
+
+  @Test
+  public void testLru() {
+    DirectoryCache cache = new DirectoryCache(2);
+    File a = new File("/a");
+    File b = new File("/b");
+    File c = new File("/c");
+
+    cache.add(a, cache.generation());
+    cache.add(b, cache.generation());
+    assertTrue(cache.contains(a));
+    cache.add(c, cache.generation());
+    assertEquals(2, cache.size());
+    assertTrue(cache.contains(a));
+    assertFalse(cache.contains(b));
+    assertTrue(cache.contains(c));
+  }
+
+  @Test
+  public void testEvictQuarter() {
+    DirectoryCache cache = new DirectoryCache(8);
+    for (int i = 0; i < 8; i++) {
+      cache.add(new File("/" + i), cache.generation());
+    }
+    assertTrue(cache.contains(new File("/0")));
+    cache.add(new File("/8"), cache.generation());
+    // Full, the oldest quarter and the new overflow are gone
+    assertEquals(6, cache.size());
+    assertTrue(cache.contains(new File("/0")));
+    assertFalse(cache.contains(new File("/1")));
+    assertFalse(cache.contains(new File("/2")));
+    assertFalse(cache.contains(new File("/3")));
+    for (int i = 4; i <= 8; i++) {
+      assertTrue(cache.contains(new File("/" + i)));
+    }
+
+    // Invalidation still finds the rest
+    cache.invalidate(new File("/"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidate() {
+    DirectoryCache cache = new DirectoryCache(16);
+    File a = new File("/a");
+    File ab = new File("/a/b");
+    File abc = new File("/a/b/c");
+    File ac = new File("/ac");
+    File a0 = new File("/a0");
+    cache.add(a, cache.generation());
+    cache.add(ab, cache.generation());
+    cache.add(abc, cache.generation());
+    cache.add(ac, cache.generation());
+    cache.add(a0, cache.generation());
+
+    cache.invalidateChildren(a);
+    assertTrue(cache.contains(a));
+    assertFalse(cache.contains(ab));
+    assertFalse(cache.contains(abc));
+    assertTrue(cache.contains(ac));
+    assertTrue(cache.contains(a0));
+
+    cache.add(ab, cache.generation());
+    cache.invalidate(a);
+    assertFalse(cache.contains(a));
+    assertFalse(cache.contains(ab));
+    assertTrue(cache.contains(ac));
+    assertTrue(cache.contains(a0));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testGeneration() {
+    DirectoryCache cache = new DirectoryCache(16);
+    File a = new File("/a");
+    File b = new File("/b");
+
+    long generation = cache.generation();
+    cache.invalidate(b);
+    cache.add(a, generation);
+    assertFalse(cache.contains(a));
+
+    cache.add(a, cache.generation());
+    assertTrue(cache.contains(a));
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final DirectoryCache cache = new DirectoryCache(8);
+    final int threadCount = 4;
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    for (int i = 0; i < threadCount; i++) {
+      final int index = i;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 10000; j++) {
+              File file = new File("/root/" + (j % 4) + "/" + (j % 16));
+              cache.add(file, cache.generation());
+              cache.contains(file);
+              if (index == 0 && j % 100 == 0) {
+                cache.invalidate(file.getParentFile());
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(null, error.get());
+    assertTrue(cache.size() <= 8);
+
+    // Paths and sorted paths are still in sync
+    cache.invalidate(new File("/root"));
+    assertEquals(0, cache.size());
+  }
+}
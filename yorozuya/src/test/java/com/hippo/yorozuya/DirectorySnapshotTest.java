@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectorySnapshotTest {
+
+  private static final class RecordingListener implements DirectorySnapshot.Listener {
+
+    final File root;
+    final List<String> changes = new ArrayList<String>();
+
+    RecordingListener(File root) {
+      this.root = root;
+    }
+
+    @Override
+    public void onChange(File file, int change) {
+      String path = file.getPath().substring(root.getPath().length() + 1);
+      changes.add("CMD".charAt(change) + " " + path.replace(File.separatorChar, '/'));
+    }
+
+    List<String> take() {
+      List<String> result = new ArrayList<String>(changes);
+      Collections.sort(result);
+      changes.clear();
+      return result;
+    }
+  }
+
+  @Test
+  public void testQuery() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    assertTrue(new File(root, "a/b").mkdirs());
+    Utils.writeFile(new File(root, "a/file1"), 10);
+    Utils.writeFile(new File(root, "a/b/file2"), 20);
+    Utils.writeFile(new File(root, "file3"), 30);
+
+    DirectorySnapshot snapshot = DirectorySnapshot.create(root, 16);
+    assertEquals(root, snapshot.getRoot());
+    assertTrue(snapshot.exists(root));
+    assertTrue(snapshot.isDirectory(root));
+    assertTrue(snapshot.exists(new File(root, "a/b/file2")));
+    assertFalse(snapshot.isDirectory(new File(root, "a/b/file2")));
+    assertEquals(20, snapshot.length(new File(root, "a/b/file2")));
+    assertEquals(new File(root, "file3").lastModified(),
+        snapshot.lastModified(new File(root, "file3")));
+    assertArrayEquals(new String[] {"a", "file3"}, snapshot.list(root));
+    assertArrayEquals(new String[] {"b", "file1"}, snapshot.list(new File(root, "a")));
+    assertNull(snapshot.list(new File(root, "file3")));
+    assertEquals(60, snapshot.getTotalSize());
+    assertEquals(3, snapshot.getFileCount());
+
+    // Outside the tree
+    assertFalse(snapshot.exists(folder.getRoot().getParentFile()));
+    assertFalse(snapshot.exists(new File(root.getPath() + "x")));
+
+    // Queries don't touch the file system
+    assertTrue(new File(root, "file3").delete());
+    assertTrue(snapshot.exists(new File(root, "file3")));
+  }
+
+  @Test
+  public void testNotify() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    assertTrue(new File(root, "a").mkdirs());
+    Utils.writeFile(new File(root, "a/file1"), 10);
+
+    DirectorySnapshot snapshot = DirectorySnapshot.create(root, 16);
+    RecordingListener listener = new RecordingListener(root);
+    snapshot.addListener(listener);
+
+    // Created in a new directory
+    assertTrue(new File(root, "b/c").mkdirs());
+    Utils.writeFile(new File(root, "b/c/file2"), 20);
+    snapshot.notifyChanged(new File(root, "b/c/file2"));
+    snapshot.update();
+    assertEquals(Arrays.asList("C b", "C b/c", "C b/c/file2"), listener.take());
+    assertEquals(30, snapshot.getTotalSize());
+
+    // Modified
+    Utils.writeFile(new File(root, "a/file1"), 15);
+    snapshot.notifyChanged(new File(root, "a/file1"));
+    snapshot.update();
+    assertEquals(Arrays.asList("M a/file1"), listener.take());
+    assertEquals(15, snapshot.length(new File(root, "a/file1")));
+
+    // Deleted directory
+    assertTrue(FileUtils.delete(new File(root, "b")));
+    snapshot.notifyChanged(new File(root, "b"));
+    snapshot.update();
+    assertEquals(Arrays.asList("D b", "D b/c", "D b/c/file2"), listener.take());
+    assertArrayEquals(new String[] {"a"}, snapshot.list(root));
+    assertEquals(1, snapshot.getFileCount());
+
+    // File replaced by directory
+    assertTrue(new File(root, "a/file1").delete());
+    assertTrue(new File(root, "a/file1").mkdir());
+    snapshot.notifyChanged(new File(root, "a/file1"));
+    snapshot.update();
+    assertEquals(Arrays.asList("C a/file1", "D a/file1"), listener.take());
+    assertTrue(snapshot.isDirectory(new File(root, "a/file1")));
+    assertEquals(0, snapshot.getFileCount());
+
+    // Not reported, not seen
+    Utils.writeFile(new File(root, "file3"), 1);
+    snapshot.update();
+    assertFalse(snapshot.exists(new File(root, "file3")));
+    assertEquals(0, listener.take().size());
+
+    snapshot.removeListener(listener);
+    snapshot.rescan();
+    assertTrue(snapshot.exists(new File(root, "file3")));
+    assertEquals(0, listener.take().size());
+  }
+
+  @Test
+  public void testOverflow() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    DirectorySnapshot snapshot = DirectorySnapshot.create(root, 2);
+    RecordingListener listener = new RecordingListener(root);
+    snapshot.addListener(listener);
+
+    Utils.writeFile(new File(root, "file1"), 1);
+    Utils.writeFile(new File(root, "file2"), 1);
+    Utils.writeFile(new File(root, "file3"), 1);
+    Utils.writeFile(new File(root, "file4"), 1);
+    // Only three are reported, but too many
+    snapshot.notifyChanged(new File(root, "file1"));
+    snapshot.notifyChanged(new File(root, "file2"));
+    snapshot.notifyChanged(new File(root, "file3"));
+    snapshot.update();
+    assertEquals(Arrays.asList("C file1", "C file2", "C file3", "C file4"),
+        listener.take());
+    assertEquals(4, snapshot.getFileCount());
+  }
+
+  @Test
+  public void testRootCreatedLater() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = new File(folder.getRoot(), "root");
+    DirectorySnapshot snapshot = DirectorySnapshot.create(root, 16);
+    assertFalse(snapshot.exists(root));
+    assertNull(snapshot.list(root));
+
+    assertTrue(root.mkdir());
+    Utils.writeFile(new File(root, "file"), 5);
+    snapshot.notifyChanged(new File(root, "file"));
+    snapshot.update();
+    assertTrue(snapshot.isDirectory(root));
+    assertEquals(5, snapshot.length(new File(root, "file")));
+
+    try {
+      DirectorySnapshot.create(root, 0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+}
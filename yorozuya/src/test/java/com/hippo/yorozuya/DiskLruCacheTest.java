@@ -0,0 +1,426 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskLruCacheTest {
+
+  private static void put(DiskLruCache cache, String key, byte[] value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    OutputStream os = editor.newOutputStream();
+    os.write(value);
+    os.close();
+    editor.commit();
+  }
+
+  private static byte[] read(DiskLruCache.Snapshot snapshot) throws IOException {
+    try {
+      return IOUtils.toByteArray(snapshot.getInputStream());
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private static byte[] get(DiskLruCache cache, String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    return snapshot != null ? read(snapshot) : null;
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder sb = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static int lineCount(File file) throws IOException {
+    byte[] bytes = FileUtils.toByteArray(file);
+    int count = 0;
+    for (byte b : bytes) {
+      if (b == '\n') count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testEdit() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 100, null);
+
+    assertNull(cache.get("a"));
+    put(cache, "a", new byte[] {1, 2, 3});
+    assertArrayEquals(new byte[] {1, 2, 3}, get(cache, "a"));
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEntryCount());
+
+    // Replace
+    put(cache, "a", new byte[] {4, 5});
+    assertArrayEquals(new byte[] {4, 5}, get(cache, "a"));
+    assertEquals(2, cache.size());
+
+    // Abort keeps the old value
+    DiskLruCache.Editor editor = cache.edit("a");
+    FileOutputStream os = editor.newOutputStream();
+    os.write(6);
+    os.close();
+    editor.abort();
+    assertArrayEquals(new byte[] {4, 5}, get(cache, "a"));
+    assertFalse(editor.getFile().exists());
+
+    // Abort a new entry
+    editor = cache.edit("b");
+    editor.abort();
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.getEntryCount());
+
+    // Editor is done
+    try {
+      editor.commit();
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+
+    // Nothing written
+    editor = cache.edit("c");
+    try {
+      editor.commit();
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+    assertNull(cache.get("c"));
+
+    assertTrue(cache.remove("a"));
+    assertFalse(cache.remove("a"));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    cache.close();
+  }
+
+  @Test
+  public void testOneEditorPerKey() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 100, null);
+
+    DiskLruCache.Editor editor = cache.edit("a");
+    assertNull(cache.edit("a"));
+    assertFalse(cache.remove("a"));
+    editor.abort();
+    assertTrue(cache.edit("a") != null);
+    cache.close();
+  }
+
+  @Test
+  public void testReadWhileWriting() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 100, null);
+    put(cache, "a", new byte[] {1, 2, 3});
+
+    DiskLruCache.Snapshot snapshot = cache.get("a");
+    DiskLruCache.Editor editor = cache.edit("a");
+    OutputStream os = editor.newOutputStream();
+    os.write(new byte[] {4, 5, 6, 7});
+    os.close();
+
+    // Readers see the old value before commit
+    assertArrayEquals(new byte[] {1, 2, 3}, get(cache, "a"));
+    editor.commit();
+    // The snapshot taken before commit keeps the old value
+    assertEquals(3, snapshot.getLength());
+    assertArrayEquals(new byte[] {1, 2, 3}, read(snapshot));
+    assertArrayEquals(new byte[] {4, 5, 6, 7}, get(cache, "a"));
+    cache.close();
+  }
+
+  @Test
+  public void testEvict() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 10, null);
+
+    put(cache, "a", new byte[4]);
+    put(cache, "b", new byte[4]);
+    // a is used recently
+    assertTrue(get(cache, "a") != null);
+    put(cache, "c", new byte[4]);
+    assertEquals(8, cache.size());
+    assertNull(cache.get("b"));
+    assertTrue(get(cache, "a") != null);
+    assertTrue(get(cache, "c") != null);
+
+    cache.setMaxSize(4);
+    assertEquals(4, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals(4, cache.getMaxSize());
+    cache.close();
+  }
+
+  @Test
+  public void testEvictInBackground() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 100, executor);
+
+    for (int i = 0; i < 100; i++) {
+      put(cache, "key" + i, new byte[10]);
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(cache.size() <= 100);
+
+    // The latest entries are kept
+    assertTrue(get(cache, "key99") != null);
+    assertNull(cache.get("key0"));
+
+    // flush() evicts on the current thread
+    cache.setMaxSize(20);
+    cache.flush();
+    assertEquals(20, cache.size());
+    assertEquals(2, cache.getEntryCount());
+    cache.close();
+  }
+
+  @Test
+  public void testRecover() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+    put(cache, "b", new byte[] {2, 2});
+    put(cache, "c", new byte[] {3, 3, 3});
+    cache.remove("c");
+    // Crash while editing
+    DiskLruCache.Editor editor = cache.edit("d");
+    OutputStream os = editor.newOutputStream();
+    os.write(4);
+    os.close();
+    editor = cache.edit("a");
+    os = editor.newOutputStream();
+    os.write(5);
+    os.close();
+
+    // Not closed, as if the process died
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertNull(cache.get("a"));
+    assertArrayEquals(new byte[] {2, 2}, get(cache, "b"));
+    assertNull(cache.get("c"));
+    assertNull(cache.get("d"));
+    assertEquals(2, cache.size());
+    assertFalse(new File(dir, "a.data.tmp").exists());
+    assertFalse(new File(dir, "d.data.tmp").exists());
+    cache.close();
+
+    // Reopen after close
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertArrayEquals(new byte[] {2, 2}, get(cache, "b"));
+    cache.close();
+  }
+
+  @Test
+  public void testRecoverTruncatedJournal() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+    put(cache, "b", new byte[] {2, 2});
+    cache.close();
+
+    // Crash while writing a line
+    FileOutputStream os = new FileOutputStream(new File(dir, DiskLruCache.JOURNAL_FILE), true);
+    os.write("REMOVE b".getBytes("UTF-8"));
+    os.close();
+
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertArrayEquals(new byte[] {1}, get(cache, "a"));
+    assertArrayEquals(new byte[] {2, 2}, get(cache, "b"));
+    cache.close();
+  }
+
+  @Test
+  public void testBrokenJournal() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+    cache.close();
+
+    // Another app version drops everything
+    cache = DiskLruCache.open(dir, 2, 100, null);
+    assertNull(cache.get("a"));
+    assertFalse(new File(dir, "a.data").exists());
+    put(cache, "a", new byte[] {1});
+    cache.close();
+
+    FileOutputStream os = new FileOutputStream(new File(dir, DiskLruCache.JOURNAL_FILE), true);
+    os.write("BROKEN a\n".getBytes("UTF-8"));
+    os.close();
+    cache = DiskLruCache.open(dir, 2, 100, null);
+    assertNull(cache.get("a"));
+    cache.close();
+  }
+
+  @Test
+  public void testCompactJournal() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+
+    for (int i = 0; i < 3000; i++) {
+      assertTrue(get(cache, "a") != null);
+    }
+    // Header, DIRTY, CLEAN and less than 2000 READ
+    assertTrue(lineCount(journal) < 2000);
+    cache.close();
+
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertArrayEquals(new byte[] {1}, get(cache, "a"));
+    cache.close();
+  }
+
+  @Test
+  public void testJournalKey() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+
+    // Rebuild the journal while the key named like it is being edited
+    DiskLruCache.Editor editor = cache.edit("journal");
+    OutputStream os = editor.newOutputStream();
+    os.write(2);
+    for (int i = 0; i < 3000; i++) {
+      assertArrayEquals(new byte[] {1}, get(cache, "a"));
+    }
+    os.write(3);
+    os.close();
+    editor.commit();
+    assertArrayEquals(new byte[] {2, 3}, get(cache, "journal"));
+    cache.close();
+
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertArrayEquals(new byte[] {1}, get(cache, "a"));
+    assertArrayEquals(new byte[] {2, 3}, get(cache, "journal"));
+    cache.close();
+  }
+
+  @Test
+  public void testReadIsBuffered() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = folder.getRoot();
+    File journal = new File(dir, DiskLruCache.JOURNAL_FILE);
+    DiskLruCache cache = DiskLruCache.open(dir, 1, 100, null);
+    put(cache, "a", new byte[] {1});
+    put(cache, "b", new byte[] {2});
+    int lines = lineCount(journal);
+
+    // Reads aren't flushed alone
+    assertArrayEquals(new byte[] {1}, get(cache, "a"));
+    assertEquals(lines, lineCount(journal));
+    cache.flush();
+    assertEquals(lines + 1, lineCount(journal));
+
+    // Flushed with an edit
+    assertArrayEquals(new byte[] {2}, get(cache, "b"));
+    assertTrue(cache.remove("a"));
+    assertEquals(lines + 3, lineCount(journal));
+
+    // Flushed on close
+    assertArrayEquals(new byte[] {2}, get(cache, "b"));
+    cache.close();
+    assertEquals(lines + 4, lineCount(journal));
+
+    cache = DiskLruCache.open(dir, 1, 100, null);
+    assertNull(cache.get("a"));
+    assertArrayEquals(new byte[] {2}, get(cache, "b"));
+    cache.close();
+  }
+
+  @Test
+  public void testIllegalUse() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    DiskLruCache cache = DiskLruCache.open(folder.getRoot(), 1, 100, null);
+
+    String[] keys = {"", "A", "a b", "a.b", "a\n", repeat('a', 121)};
+    for (String key : keys) {
+      try {
+        cache.edit(key);
+        fail(key);
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+    cache.edit(repeat('a', 120)).abort();
+
+    DiskLruCache.Editor editor = cache.edit("a");
+    cache.close();
+    assertTrue(cache.isClosed());
+    try {
+      cache.get("a");
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+    try {
+      editor.commit();
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+
+    try {
+      DiskLruCache.open(folder.getRoot(), 1, 0, null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+
+    cache = DiskLruCache.open(folder.getRoot(), 1, 100, null);
+    assertTrue(cache.delete());
+    assertFalse(folder.getRoot().exists());
+  }
+}
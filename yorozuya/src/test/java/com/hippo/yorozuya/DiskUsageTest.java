@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiskUsageTest {
+
+  /**
+   * The naive recursion, to check the results.
+   */
+  private static long[] countRecursively(File file) {
+    long[] result = new long[3];
+    File[] files = file.listFiles();
+    for (File child : files) {
+      if (child.isDirectory()) {
+        long[] childResult = countRecursively(child);
+        result[0] += childResult[0];
+        result[1] += childResult[1];
+        result[2] += childResult[2] + 1;
+      } else {
+        result[0] += child.length();
+        result[1]++;
+      }
+    }
+    return result;
+  }
+
+  private static void assertUsage(File file, DiskUsage usage) {
+    long[] expected = countRecursively(file);
+    assertEquals(file, usage.getFile());
+    assertEquals(expected[0], usage.getSize());
+    assertEquals(expected[1], usage.getFileCount());
+    assertEquals(expected[2], usage.getDirectoryCount());
+  }
+
+  @Test
+  public void testDu() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    Utils.createTree(root, 4, 3, new int[] {1});
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 2; i++) {
+        DiskUsage usage = i == 0 ? FileUtils.du(root, 2) : FileUtils.du(root, 2, executor);
+        assertUsage(root, usage);
+
+        List<DiskUsage> children = usage.getChildren();
+        assertEquals(4, children.size());
+        for (int j = 0; j < 4; j++) {
+          DiskUsage child = children.get(j);
+          assertEquals(new File(root, "dir" + j), child.getFile());
+          assertUsage(child.getFile(), child);
+          assertEquals(4, child.getChildren().size());
+          for (DiskUsage grandchild : child.getChildren()) {
+            assertUsage(grandchild.getFile(), grandchild);
+            // Depth limit
+            assertEquals(0, grandchild.getChildren().size());
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDuDepth() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    Utils.createTree(root, 2, 2, new int[] {10});
+
+    // The totals cover the whole tree
+    DiskUsage usage = FileUtils.du(root, 0, null);
+    assertUsage(root, usage);
+    assertEquals(0, usage.getChildren().size());
+
+    try {
+      FileUtils.du(root, -1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testDuSymlink() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.newFolder("root");
+    Utils.createTree(root, 2, 2, new int[] {10});
+    DiskUsage expected = FileUtils.du(root, 1);
+
+    // A loop and a link out of the tree
+    File outside = folder.newFolder("outside");
+    Utils.writeFile(new File(outside, "file"), 100);
+    assumeTrue(Utils.symlink(root, new File(root, "dir0/dir0/loop")));
+    assumeTrue(Utils.symlink(outside, new File(root, "dir1/outside")));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 2; i++) {
+        DiskUsage usage = i == 0 ? FileUtils.du(root, 1) : FileUtils.du(root, 1, executor);
+        assertEquals(expected.getSize(), usage.getSize());
+        assertEquals(expected.getFileCount(), usage.getFileCount());
+        assertEquals(expected.getDirectoryCount(), usage.getDirectoryCount());
+        assertEquals(2, usage.getChildren().size());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDuFile() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    File file = new File(folder.getRoot(), "file");
+    Utils.writeFile(file, 123);
+    DiskUsage usage = FileUtils.du(file, 1);
+    assertEquals(123, usage.getSize());
+    assertEquals(1, usage.getFileCount());
+    assertEquals(0, usage.getDirectoryCount());
+    assertEquals(0, usage.getChildren().size());
+
+    usage = FileUtils.du(new File(folder.getRoot(), "not-exist"), 1);
+    assertEquals(0, usage.getSize());
+    assertEquals(0, usage.getFileCount());
+
+    // Empty directory
+    usage = FileUtils.du(folder.newFolder(), 1);
+    assertEquals(0, usage.getSize());
+    assertEquals(0, usage.getFileCount());
+    assertEquals(0, usage.getChildren().size());
+  }
+}
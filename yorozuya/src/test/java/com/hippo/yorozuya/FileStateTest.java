@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileStateTest {
+
+  /**
+   * Counts attribute queries, each one is a stat() call.
+   */
+  private static final class CountingFile extends File {
+
+    int stats;
+
+    CountingFile(File parent, String child) {
+      super(parent, child);
+    }
+
+    @Override
+    public boolean exists() {
+      stats++;
+      return super.exists();
+    }
+
+    @Override
+    public boolean isFile() {
+      stats++;
+      return super.isFile();
+    }
+
+    @Override
+    public boolean isDirectory() {
+      stats++;
+      return super.isDirectory();
+    }
+
+    @Override
+    public long length() {
+      stats++;
+      return super.length();
+    }
+
+    @Override
+    public long lastModified() {
+      stats++;
+      return super.lastModified();
+    }
+  }
+
+  @Test
+  public void testFile() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    CountingFile file = new CountingFile(folder.getRoot(), "file");
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(new byte[10]);
+    os.close();
+    long lastModified = file.lastModified();
+    file.stats = 0;
+
+    FileState state = FileState.of(file);
+    assertSame(file, state.getFile());
+    assertTrue(state.isFile());
+    assertTrue(state.exists());
+    assertFalse(state.isDirectory());
+    assertEquals(1, file.stats);
+    assertEquals(10, state.length());
+    assertEquals(10, state.length());
+    assertEquals(lastModified, state.lastModified());
+    assertEquals(lastModified, state.lastModified());
+    assertEquals(3, file.stats);
+  }
+
+  @Test
+  public void testDirectory() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    CountingFile file = new CountingFile(folder.getRoot(), "dir");
+    assertTrue(file.mkdir());
+    file.stats = 0;
+
+    FileState state = FileState.of(file);
+    assertTrue(state.isDirectory());
+    assertTrue(state.exists());
+    assertFalse(state.isFile());
+    assertEquals(1, file.stats);
+  }
+
+  @Test
+  public void testNotExist() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    CountingFile file = new CountingFile(folder.getRoot(), "not-exist");
+
+    FileState state = FileState.of(file);
+    assertFalse(state.exists());
+    assertFalse(state.isFile());
+    assertFalse(state.isDirectory());
+    assertEquals(0, state.length());
+    assertEquals(0, state.lastModified());
+    assertEquals(1, file.stats);
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "file");
+
+    FileState state = FileUtils.stat(file);
+    assertFalse(state.exists());
+    assertTrue(file.createNewFile());
+    assertFalse(state.exists());
+    assertFalse(state.isFile());
+    assertTrue(FileUtils.stat(file).isFile());
+
+    assertNull(FileUtils.stat(null));
+  }
+
+  @Test
+  public void testStatCount() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    // ensureFile() on an existing file
+    CountingFile file = new CountingFile(folder.getRoot(), "file");
+    assertTrue(file.createNewFile());
+    file.stats = 0;
+    assertTrue(FileUtils.ensureFile(file));
+    assertEquals(1, file.stats);
+
+    // ensureFile() on a new file
+    file = new CountingFile(folder.getRoot(), "new-file");
+    assertTrue(FileUtils.ensureFile(file));
+    assertEquals(2, file.stats);
+
+    // ensureDir() on an existing directory
+    file = new CountingFile(folder.getRoot(), "dir");
+    assertTrue(file.mkdir());
+    file.stats = 0;
+    assertTrue(FileUtils.ensureDir(file));
+    assertEquals(1, file.stats);
+
+    // ensureDir() on a new directory, mkdirs() calls exists()
+    file = new CountingFile(folder.getRoot(), "new-dir");
+    assertTrue(FileUtils.ensureDir(file));
+    assertTrue(file.isDirectory());
+    assertEquals(3, file.stats);
+
+    // delete() on a file
+    file = new CountingFile(folder.getRoot(), "file");
+    assertTrue(FileUtils.delete(file));
+    assertEquals(0, file.stats);
+  }
+}
@@ -20,11 +20,29 @@ package com.hippo.yorozuya;
  * Created by Hippo on 1/21/2017.
  */
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
@@ -84,6 +102,159 @@ public class FileUtilsTest {
     assertFalse(FileUtils.ensureDir(null));
   }
 
+  @Test
+  public void testEnsureDirCached() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+
+    final int[] stats = new int[1];
+    File dir = new File(root, "dir") {
+      @Override
+      public boolean isDirectory() {
+        stats[0]++;
+        return super.isDirectory();
+      }
+    };
+
+    FileUtils.enableDirectoryCache(16);
+    try {
+      assertTrue(FileUtils.ensureDir(dir));
+      int count = stats[0];
+      assertTrue(FileUtils.ensureDir(dir));
+      assertTrue(FileUtils.ensureDir(new File(dir.getPath())));
+      assertEquals(count, stats[0]);
+
+      // delete() invalidates the directory and directories under it
+      File child = new File(dir, "child");
+      assertTrue(FileUtils.ensureDir(child));
+      assertTrue(FileUtils.delete(dir));
+      assertTrue(FileUtils.ensureDir(child));
+      assertTrue(child.isDirectory());
+
+      // deleteContent() invalidates directories under it
+      assertTrue(FileUtils.deleteContent(dir));
+      assertTrue(FileUtils.ensureDir(child));
+      assertTrue(child.isDirectory());
+
+      // Deleted in other ways
+      assertTrue(child.delete());
+      FileUtils.invalidate(child);
+      assertTrue(FileUtils.ensureDir(child));
+      assertTrue(child.isDirectory());
+
+      // A file is never cached
+      File file = new File(root, "file");
+      assertTrue(file.createNewFile());
+      assertFalse(FileUtils.ensureDir(file));
+      assertFalse(FileUtils.ensureDir(file));
+    } finally {
+      FileUtils.disableDirectoryCache();
+    }
+  }
+
+  // Calls ensureDir(dir) on another thread and waits for it
+  private static void ensureDirOnOtherThread(final File dir) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        assertTrue(FileUtils.ensureDir(dir));
+      }
+    };
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Test
+  public void testEnsureDirWhileDeleting() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    final File root = folder.getRoot();
+    final File dir = new File(root, "dir") {
+      @Override
+      public boolean delete() {
+        // Found by another thread right before it's deleted
+        ensureDirOnOtherThread(new File(getPath()));
+        return super.delete();
+      }
+
+      @Override
+      public String[] list() {
+        ensureDirOnOtherThread(new File(this, "child"));
+        return super.list();
+      }
+    };
+    File sameDir = new File(dir.getPath());
+    File child = new File(dir, "child");
+
+    FileUtils.enableDirectoryCache(16);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      assertTrue(sameDir.mkdir());
+      assertTrue(FileUtils.delete(dir));
+      assertFalse(sameDir.exists());
+      assertTrue(FileUtils.ensureDir(sameDir));
+      assertTrue(sameDir.isDirectory());
+
+      assertTrue(FileUtils.deleteContent(dir));
+      assertFalse(child.exists());
+      assertTrue(FileUtils.ensureDir(child));
+      assertTrue(child.isDirectory());
+
+      assertTrue(child.delete());
+      assertTrue(FileUtils.delete(dir, executor).isSuccessful());
+      assertFalse(sameDir.exists());
+      assertTrue(FileUtils.ensureDir(sameDir));
+      assertTrue(sameDir.isDirectory());
+    } finally {
+      executor.shutdown();
+      FileUtils.disableDirectoryCache();
+    }
+  }
+
+  @Test
+  public void testEnsureDirConcurrent() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    final File dir = new File(folder.getRoot(), "a/b/c/d");
+    final int threadCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger successCount = new AtomicInteger();
+
+    FileUtils.enableDirectoryCache(16);
+    try {
+      Thread[] threads = new Thread[threadCount];
+      for (int i = 0; i < threadCount; i++) {
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            if (FileUtils.ensureDir(dir)) {
+              successCount.incrementAndGet();
+            }
+          }
+        };
+        threads[i].start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(threadCount, successCount.get());
+      assertTrue(dir.isDirectory());
+    } finally {
+      FileUtils.disableDirectoryCache();
+    }
+  }
+
   @Test
   public void testDelete() throws IOException {
     TemporaryFolder folder = new TemporaryFolder();
@@ -133,5 +304,390 @@ public class FileUtilsTest {
     assertTrue(ArrayUtils.isEmpty(file3.listFiles()));
   }
 
+  /**
+   * Creates a tree with {@code width} files and {@code width} directories
+   * in each directory, and returns the number of created files and directories.
+   */
+  @Test
+  public void testDeleteTree() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    File dir = folder.newFolder();
+    Utils.createTree(dir, 4, 3);
+    assertTrue(FileUtils.delete(dir));
+    assertFalse(dir.exists());
+
+    dir = folder.newFolder();
+    Utils.createTree(dir, 4, 3);
+    assertTrue(FileUtils.deleteContent(dir));
+    assertTrue(dir.isDirectory());
+    assertTrue(ArrayUtils.isEmpty(dir.list()));
+  }
+
+  @Test
+  public void testDeleteParallel() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    File dir = folder.newFolder();
+    int count = Utils.createTree(dir, 5, 3) + 1;
+    FileUtils.DeleteResult result = FileUtils.delete(dir, executor);
+    assertTrue(result.isSuccessful());
+    assertEquals(count, result.getDeletedCount());
+    assertFalse(dir.exists());
+
+    // A file
+    File file = folder.newFile();
+    result = FileUtils.delete(file, executor);
+    assertTrue(result.isSuccessful());
+    assertEquals(1, result.getDeletedCount());
+    assertFalse(file.exists());
+
+    // Not exist
+    result = FileUtils.delete(file, executor);
+    assertTrue(result.isSuccessful());
+    assertEquals(0, result.getDeletedCount());
+
+    result = FileUtils.delete(null, executor);
+    assertTrue(result.isSuccessful());
+    assertEquals(0, result.getDeletedCount());
+
+    // Run on the current thread
+    dir = folder.newFolder();
+    count = Utils.createTree(dir, 3, 3) + 1;
+    result = FileUtils.delete(dir, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    });
+    assertTrue(result.isSuccessful());
+    assertEquals(count, result.getDeletedCount());
+
+    executor.shutdown();
+  }
+
+  @Test
+  public void testDeleteParallelFailure() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    File dir = folder.newFolder();
+    Utils.createTree(dir, 2, 2);
+    File locked = new File(dir, "dir0");
+    assertTrue(locked.setWritable(false));
+    try {
+      // Root ignores permissions
+      if (new File(locked, "file0").delete()) return;
+
+      FileUtils.DeleteResult result = FileUtils.delete(dir, executor);
+      assertFalse(result.isSuccessful());
+      assertTrue(result.getFailures().contains(dir));
+      assertTrue(result.getFailures().contains(locked));
+      assertTrue(result.getFailures().contains(new File(locked, "file1")));
+      assertTrue(new File(dir, "dir0").exists());
+      assertFalse(new File(dir, "dir1").exists());
+    } finally {
+      locked.setWritable(true);
+      executor.shutdown();
+    }
+  }
+
+  private static void assertSameTree(File expected, File actual) throws IOException {
+    if (expected.isDirectory()) {
+      assertTrue(actual.isDirectory());
+      String[] names = expected.list();
+      for (String name : names) {
+        assertSameTree(new File(expected, name), new File(actual, name));
+      }
+    } else {
+      assertTrue(actual.isFile());
+      assertArrayEquals(FileUtils.toByteArray(expected), FileUtils.toByteArray(actual));
+    }
+  }
+
+  @Test
+  public void testCopyTree() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File src = folder.newFolder("src");
+    Utils.createTree(src, 3, 2);
+    File file = new File(src, "dir1/file2");
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(Utils.newSample(1024 * 100));
+    os.close();
+    int fileCount = 3 + 3 * 3 + 3 * 3 * 3;
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      File dst = new File(folder.getRoot(), "dst");
+      FileUtils.CopyResult result = FileUtils.copyTree(src, dst, executor, false);
+      assertTrue(result.isSuccessful());
+      assertEquals(fileCount, result.getCopiedCount());
+      assertEquals(0, result.getSkippedCount());
+      assertEquals(1024 * 100, result.getCopiedBytes());
+      assertSameTree(src, dst);
+
+      // Unchanged files are skipped
+      os = new FileOutputStream(file);
+      os.write(Utils.newSample(1024 * 50));
+      os.close();
+      result = FileUtils.copyTree(src, dst, executor, true);
+      assertTrue(result.isSuccessful());
+      assertEquals(1, result.getCopiedCount());
+      assertEquals(fileCount - 1, result.getSkippedCount());
+      assertSameTree(src, dst);
+
+      // Single file, on the current thread
+      File dstFile = new File(folder.getRoot(), "single/file");
+      result = FileUtils.copyTree(file, dstFile, null, false);
+      assertTrue(result.isSuccessful());
+      assertEquals(1, result.getCopiedCount());
+      assertSameTree(file, dstFile);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCopyTreeFailure() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File src = folder.newFolder("src");
+    assertTrue(new File(src, "file1").createNewFile());
+    assertTrue(new File(src, "file2").createNewFile());
+    assertTrue(new File(src, "dir").mkdir());
+    assertTrue(new File(src, "dir/file3").createNewFile());
+
+    // A directory in dst blocks file1, a file in dst blocks dir
+    File dst = folder.newFolder("dst");
+    assertTrue(new File(dst, "file1").mkdir());
+    assertTrue(new File(dst, "file1/child").createNewFile());
+    assertTrue(new File(dst, "dir").createNewFile());
+
+    FileUtils.CopyResult result = FileUtils.copyTree(src, dst, null, false);
+    assertFalse(result.isSuccessful());
+    assertEquals(1, result.getCopiedCount());
+    assertEquals(2, result.getFailures().size());
+    assertTrue(result.getFailures().contains(new File(src, "file1")));
+    assertTrue(result.getFailures().contains(new File(src, "dir")));
+    assertTrue(new File(dst, "file2").isFile());
+
+    result = FileUtils.copyTree(new File(src, "not-exist"), dst, null, false);
+    assertEquals(1, result.getFailures().size());
+
+    try {
+      FileUtils.copyTree(src, new File(src, "dir/sub"), null, false);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testCopyTreeSymlink() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File src = folder.newFolder("src");
+    assertTrue(new File(src, "file1").createNewFile());
+    assertTrue(new File(src, "dir").mkdir());
+    assertTrue(new File(src, "dir/file2").createNewFile());
+    File loop = new File(src, "dir/loop");
+    assumeTrue(Utils.symlink(src, loop));
+
+    // The loop isn't entered
+    File dst = new File(folder.getRoot(), "dst");
+    FileUtils.CopyResult result = FileUtils.copyTree(src, dst, null, false);
+    assertEquals(2, result.getCopiedCount());
+    assertEquals(Arrays.asList(loop), result.getFailures());
+    assertTrue(new File(dst, "dir/file2").isFile());
+    assertFalse(new File(dst, "dir/loop").exists());
+
+    // dst is under src through a link
+    File link = new File(folder.getRoot(), "link");
+    assumeTrue(Utils.symlink(src, link));
+    try {
+      FileUtils.copyTree(src, new File(link, "dir/sub"), null, false);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+    try {
+      FileUtils.copyTree(link, new File(src, "sub"), null, false);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  private static File writeNewFile(TemporaryFolder folder, byte[] bytes) throws IOException {
+    File file = folder.newFile();
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(bytes);
+    os.close();
+    return file;
+  }
+
+  @Test
+  public void testToByteArray() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    byte[] sample = Utils.newSample(1024 * 1024 * 3 + 7);
+    assertArrayEquals(sample, FileUtils.toByteArray(writeNewFile(folder, sample)));
+    assertArrayEquals(new byte[0], FileUtils.toByteArray(writeNewFile(folder, new byte[0])));
+
+    try {
+      FileUtils.toByteArray(new File(folder.getRoot(), "not-exist"));
+      fail();
+    } catch (FileNotFoundException e) {
+      // Ignore
+    }
+
+    assertEquals(null, FileUtils.toByteArray(null));
+  }
+
+  @Test
+  public void testMap() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    byte[] sample = Utils.newSample(10007);
+    File file = writeNewFile(folder, sample);
+
+    // Single chunk
+    MappedByteBuffer[] buffers = FileUtils.map(file);
+    assertEquals(1, buffers.length);
+    byte[] bytes = new byte[sample.length];
+    buffers[0].get(bytes);
+    assertArrayEquals(sample, bytes);
+    assertTrue(FileUtils.unmap(buffers));
+
+    // Multiple chunks
+    buffers = FileUtils.map(file, 0, -1, 1000);
+    assertEquals(11, buffers.length);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (int i = 0; i < buffers.length; i++) {
+      assertEquals(i == 10 ? 7 : 1000, buffers[i].remaining());
+      bytes = new byte[buffers[i].remaining()];
+      buffers[i].get(bytes);
+      os.write(bytes);
+    }
+    assertArrayEquals(sample, os.toByteArray());
+    assertTrue(FileUtils.unmap(buffers));
+
+    // Region
+    buffers = FileUtils.map(file, 3, 2500, 1000);
+    assertEquals(3, buffers.length);
+    os.reset();
+    for (MappedByteBuffer buffer: buffers) {
+      bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      os.write(bytes);
+    }
+    byte[] expected = new byte[2500];
+    System.arraycopy(sample, 3, expected, 0, expected.length);
+    assertArrayEquals(expected, os.toByteArray());
+    assertTrue(FileUtils.unmap(buffers));
+
+    // Empty region
+    assertEquals(0, FileUtils.map(file, sample.length, -1).length);
+    assertEquals(0, FileUtils.map(file, 5, 0).length);
+
+    // The file can be deleted after unmapping
+    assertTrue(FileUtils.delete(file));
+    assertTrue(FileUtils.unmap((MappedByteBuffer[]) null));
+  }
+
+  @Test
+  public void testMapIllegalArgument() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = writeNewFile(folder, Utils.newSample(100));
+
+    long[][] args = {
+        { -1, 10, 10 },
+        { 0, -2, 10 },
+        { 0, 10, 0 },
+        { 50, 51, 10 },
+        { 101, -1, 10 },
+    };
+    for (long[] arg: args) {
+      try {
+        FileUtils.map(file, arg[0], arg[1], (int) arg[2]);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Test
+  public void testMapToByteArray() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    byte[] sample = Utils.newSample(1024 * 100 + 7);
+    assertArrayEquals(sample, FileUtils.mapToByteArray(writeNewFile(folder, sample)));
+    assertArrayEquals(new byte[0], FileUtils.mapToByteArray(writeNewFile(folder, new byte[0])));
+    assertEquals(null, FileUtils.mapToByteArray(null));
+  }
+
+  @Test
+  public void testMapToString() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1024; i++) {
+      sb.append("abc你好");
+    }
+    String string = sb.toString();
+    Charset gbk = Charset.forName("GBK");
+    assertEquals(string,
+        FileUtils.mapToString(writeNewFile(folder, string.getBytes("UTF-8")), IOUtils.UTF_8));
+    assertEquals(string, FileUtils.mapToString(writeNewFile(folder, string.getBytes("GBK")), gbk));
+    assertEquals("", FileUtils.mapToString(writeNewFile(folder, new byte[0]), gbk));
+    assertEquals(null, FileUtils.mapToString(null, gbk));
+    assertEquals(null, FileUtils.mapToString(writeNewFile(folder, new byte[0]), null));
+  }
+
+  @Test
+  public void testChecksum() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    byte[] sample = Utils.newSample(1024 * 100 + 7);
+    CRC32 expected = new CRC32();
+    expected.update(sample);
+    assertEquals(expected.getValue(),
+        FileUtils.checksum(writeNewFile(folder, sample), new CRC32()));
+    assertEquals(new CRC32().getValue(),
+        FileUtils.checksum(writeNewFile(folder, new byte[0]), new CRC32()));
+  }
+
+  @Test
+  public void testDigest() throws IOException, NoSuchAlgorithmException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    // Read to heap, mapped
+    for (int size: new int[] { 0, 1024 * 100 + 7, 1024 * 1024 * 5 + 7 }) {
+      byte[] sample = Utils.newSample(size);
+      File file = writeNewFile(folder, sample);
+      assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(sample),
+          FileUtils.digest(file, "SHA-256"));
+      assertArrayEquals(MessageDigest.getInstance("MD5").digest(sample),
+          FileUtils.digest(file, MessageDigest.getInstance("MD5")));
+    }
 
+    try {
+      FileUtils.digest(writeNewFile(folder, new byte[0]), "NOT-AN-ALGORITHM");
+      fail();
+    } catch (NoSuchAlgorithmException e) {
+      // Ignore
+    }
+  }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileWalkerTest {
+
+  /*
+   * root
+   * ├── a
+   * │   ├── a1.txt
+   * │   └── b
+   * │       └── b1.jpg
+   * ├── c
+   * │   └── c1.png
+   * └── r1.txt
+   */
+  private static File createTree() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = folder.getRoot();
+    Utils.createFiles(root, "a/b/", "c/", "a/a1.txt", "a/b/b1.jpg", "c/c1.png", "r1.txt");
+    return root;
+  }
+
+  private static List<String> walk(File root, FileWalker walker) {
+    List<String> paths = new ArrayList<String>();
+    int prefix = root.getPath().length() + 1;
+    for (File file : walker) {
+      paths.add(file.getPath().substring(prefix).replace(File.separatorChar, '/'));
+    }
+    return paths;
+  }
+
+  private static List<String> sorted(List<String> list) {
+    Collections.sort(list);
+    return list;
+  }
+
+  @Test
+  public void testDepthFirst() throws IOException {
+    File root = createTree();
+    List<String> paths = walk(root, new FileWalker(root));
+    assertEquals(Arrays.asList("a", "a/a1.txt", "a/b", "a/b/b1.jpg", "c", "c/c1.png", "r1.txt"),
+        sorted(new ArrayList<String>(paths)));
+
+    // Directories come before their children, subtrees are not interleaved
+    for (int i = 0; i < paths.size(); i++) {
+      String path = paths.get(i);
+      String parent = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : null;
+      if (parent != null) {
+        int parentIndex = paths.indexOf(parent);
+        assertTrue(parentIndex < i);
+        for (int j = parentIndex + 1; j < i; j++) {
+          assertTrue(paths.get(j).startsWith(parent + "/"));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBreadthFirst() throws IOException {
+    File root = createTree();
+    List<String> paths = walk(root, new FileWalker(root).breadthFirst());
+    assertEquals(7, paths.size());
+    // Level by level
+    int lastLevel = 0;
+    for (String path : paths) {
+      int level = path.split("/").length;
+      assertTrue(level >= lastLevel);
+      lastLevel = level;
+    }
+    assertEquals("a/b/b1.jpg", paths.get(6));
+  }
+
+  @Test
+  public void testMaxDepth() throws IOException {
+    File root = createTree();
+    assertEquals(Arrays.asList("a", "c", "r1.txt"),
+        sorted(walk(root, new FileWalker(root).maxDepth(1))));
+    assertEquals(Arrays.asList("a", "a/a1.txt", "a/b", "c", "c/c1.png", "r1.txt"),
+        sorted(walk(root, new FileWalker(root).maxDepth(2).breadthFirst())));
+    assertEquals(0, walk(root, new FileWalker(root).maxDepth(0)).size());
+  }
+
+  @Test
+  public void testFilter() throws IOException {
+    File root = createTree();
+    assertEquals(Arrays.asList("a/a1.txt", "r1.txt"),
+        sorted(walk(root, new FileWalker(root).filter(FileWalker.glob("*.txt")))));
+    assertEquals(Arrays.asList("a/b/b1.jpg", "c/c1.png"),
+        sorted(walk(root, new FileWalker(root).filter(FileWalker.glob("*.{jpg,png}")))));
+    assertEquals(Arrays.asList("a/a1.txt", "a/b/b1.jpg", "c/c1.png", "r1.txt"),
+        sorted(walk(root, new FileWalker(root).filesOnly())));
+
+    // Pruned
+    FilenameFilter pruneA = new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.equals("a");
+      }
+    };
+    assertEquals(Arrays.asList("a", "c", "c/c1.png", "r1.txt"),
+        sorted(walk(root, new FileWalker(root).prune(pruneA))));
+  }
+
+  @Test
+  public void testFilterBeforeFile() throws IOException {
+    File root = createTree();
+    final List<String> names = new ArrayList<String>();
+    FileWalker walker = new FileWalker(root).maxDepth(1).filter(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        names.add(name);
+        return false;
+      }
+    });
+    assertFalse(walker.iterator().hasNext());
+    assertEquals(Arrays.asList("a", "c", "r1.txt"), sorted(names));
+  }
+
+  @Test
+  public void testGlob() {
+    String[][] cases = {
+        {"*.txt", "a.txt", "true"},
+        {"*.txt", "a.txt.bak", "false"},
+        {"a?c", "abc", "true"},
+        {"a?c", "ac", "false"},
+        {"[a-c]x", "bx", "true"},
+        {"[!a-c]x", "bx", "false"},
+        {"[!a-c]x", "dx", "true"},
+        {"*.{jpg,png}", "a.png", "true"},
+        {"*.{jpg,png}", "a.gif", "false"},
+        {"a.b", "axb", "false"},
+        {"a+(b)", "a+(b)", "true"},
+        {"\\*", "*", "true"},
+        {"\\*", "a", "false"},
+    };
+    for (String[] c : cases) {
+      assertEquals(c[0] + " " + c[1], Boolean.parseBoolean(c[2]),
+          FileWalker.glob(c[0]).accept(null, c[1]));
+    }
+
+    String[] illegal = {"[a", "{a,b", "{a,{b}}", "a\\"};
+    for (String glob : illegal) {
+      try {
+        FileWalker.glob(glob);
+        fail(glob);
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Test
+  public void testSymlinkLoop() throws IOException, InterruptedException {
+    File root = createTree();
+    File link = new File(root, "a/b/loop");
+    assumeTrue(Utils.symlink(root, link));
+    List<String> paths = walk(root, new FileWalker(root));
+    assertEquals(Arrays.asList("a", "a/a1.txt", "a/b", "a/b/b1.jpg", "a/b/loop",
+        "c", "c/c1.png", "r1.txt"), sorted(paths));
+  }
+
+  @Test
+  public void testIterator() throws IOException {
+    File root = createTree();
+    Iterator<File> iterator = new FileWalker(root).maxDepth(1).iterator();
+    assertTrue(iterator.hasNext());
+    assertTrue(iterator.hasNext());
+    iterator.next();
+    iterator.next();
+    iterator.next();
+    assertFalse(iterator.hasNext());
+    try {
+      iterator.next();
+      fail();
+    } catch (NoSuchElementException e) {
+      // Ignore
+    }
+
+    // Not exist
+    assertFalse(new FileWalker(new File(root, "not-exist")).iterator().hasNext());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GroupCommitTest {
+
+  private static void commit(GroupCommit group, File file, byte[] bytes) throws IOException {
+    AtomicFile.Output output = AtomicFile.openWrite(file);
+    output.write(bytes);
+    group.commit(output);
+    // Closing after commit doesn't discard the write
+    output.close();
+  }
+
+  @Test
+  public void testFlush() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file1 = new File(folder.getRoot(), "file1");
+    File file2 = new File(folder.getRoot(), "dir/file2");
+    AtomicFile.write(file1, new byte[] {1}, false);
+
+    GroupCommit group = new GroupCommit(0);
+    commit(group, file1, new byte[] {2});
+    commit(group, file2, new byte[] {3});
+    assertEquals(2, group.getPendingCount());
+
+    // Not visible before flush, file1 keeps its old content
+    assertArrayEquals(new byte[] {1}, FileUtils.toByteArray(file1));
+    assertFalse(file2.exists());
+
+    // Visible after flush
+    group.flush();
+    assertEquals(0, group.getPendingCount());
+    assertArrayEquals(new byte[] {2}, FileUtils.toByteArray(file1));
+    assertArrayEquals(new byte[] {3}, FileUtils.toByteArray(file2));
+    assertArrayEquals(new String[] {"file2"}, file2.getParentFile().list());
+
+    // Nothing to flush
+    group.flush();
+  }
+
+  @Test
+  public void testCommitOrder() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "file");
+
+    // The last committed write wins
+    GroupCommit group = new GroupCommit(0);
+    commit(group, file, new byte[] {1});
+    commit(group, file, new byte[] {2});
+    commit(group, file, new byte[] {3});
+    group.flush();
+    assertArrayEquals(new byte[] {3}, FileUtils.toByteArray(file));
+    assertArrayEquals(new String[] {"file"}, folder.getRoot().list());
+  }
+
+  @Test
+  public void testMaxPending() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    GroupCommit group = new GroupCommit(3);
+    commit(group, new File(folder.getRoot(), "1"), new byte[] {1});
+    commit(group, new File(folder.getRoot(), "2"), new byte[] {2});
+    assertEquals(2, group.getPendingCount());
+    assertFalse(new File(folder.getRoot(), "1").exists());
+    commit(group, new File(folder.getRoot(), "3"), new byte[] {3});
+    assertEquals(0, group.getPendingCount());
+    assertEquals(3, folder.getRoot().list().length);
+
+    try {
+      new GroupCommit(-1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testFailure() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File file = new File(folder.getRoot(), "file");
+    File dir = folder.newFolder("dir");
+    assertTrue(new File(dir, "child").createNewFile());
+
+    // A failed write doesn't stop others
+    GroupCommit group = new GroupCommit(0);
+    commit(group, dir, new byte[] {1});
+    commit(group, file, new byte[] {2});
+    try {
+      group.flush();
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    assertTrue(dir.isDirectory());
+    assertArrayEquals(new byte[] {2}, FileUtils.toByteArray(file));
+    assertEquals(2, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testConcurrent() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    final File root = folder.getRoot();
+    final GroupCommit group = new GroupCommit(16);
+    final int threadCount = 4;
+    final int fileCount = 50;
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    for (int i = 0; i < threadCount; i++) {
+      final int thread = i;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < fileCount; j++) {
+              commit(group, new File(root, thread + "-" + j), new byte[] {(byte) j});
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    group.flush();
+
+    assertEquals(null, error.get());
+    assertEquals(threadCount * fileCount, root.list().length);
+    for (int i = 0; i < threadCount; i++) {
+      for (int j = 0; j < fileCount; j++) {
+        assertArrayEquals(new byte[] {(byte) j}, FileUtils.toByteArray(new File(root, i + "-" + j)));
+      }
+    }
+  }
+}
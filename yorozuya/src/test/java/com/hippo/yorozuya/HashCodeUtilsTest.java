@@ -21,6 +21,7 @@ package com.hippo.yorozuya;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -31,4 +32,19 @@ public class HashCodeUtilsTest {
     assertEquals(0, HashCodeUtils.hashCode((Object[]) null));
     assertEquals(1 * 31 * 31 + 2 * 31 + 3, HashCodeUtils.hashCode(1, 2, 3));
   }
+
+  @Test
+  public void testMix() {
+    assertEquals(0, HashCodeUtils.mix(0));
+    assertEquals(0x514e28b7, HashCodeUtils.mix(1));
+
+    // Similar inputs spread over the low bits
+    int[] counts = new int[16];
+    for (int i = 0; i < 1600; i++) {
+      counts[HashCodeUtils.mix(("key" + i).hashCode()) & 15]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 50);
+    }
+  }
 }
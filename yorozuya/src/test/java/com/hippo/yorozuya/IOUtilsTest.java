@@ -21,17 +21,46 @@ package com.hippo.yorozuya;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.Okio;
@@ -49,6 +78,7 @@ public class IOUtilsTest {
       (byte) 0xba, (byte) 0xc3,
   };
   private static final String NIHAO = "你好";
+  private static final int EOF = -1;
 
   @Test
   public void testCloseQuietly() throws IOException {
@@ -126,6 +156,117 @@ public class IOUtilsTest {
     assertEquals(0, IOUtils.copy(null, null));
   }
 
+  private static byte[] copyOfRange(byte[] bytes, int from, int to) {
+    byte[] result = new byte[to - from];
+    System.arraycopy(bytes, from, result, 0, result.length);
+    return result;
+  }
+
+  @Test
+  public void testCopyFileStream() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    final File inFile = writeNewFile(sample, 1);
+    final File outFile = writeNewFile(new byte[] { 1, 2, 3 }, 1);
+
+    // Copy from current position, append to the end
+    FileInputStream is = new FileInputStream(inFile);
+    assertEquals(5, is.skip(5));
+    FileOutputStream os = new FileOutputStream(outFile, true);
+    assertEquals(sample.length - 5, IOUtils.copy(is, os));
+    assertEquals(EOF, is.read());
+    assertEquals(sample.length + 3 - 5, os.getChannel().position());
+    is.close();
+    os.close();
+
+    InputStream in = new FileInputStream(outFile);
+    byte[] result = IOUtils.toByteArray(in);
+    in.close();
+    assertEquals(sample.length + 3 - 5, result.length);
+    assertArrayEquals(new byte[] { 1, 2, 3 }, copyOfRange(result, 0, 3));
+    assertArrayEquals(copyOfRange(sample, 5, sample.length), copyOfRange(result, 3, result.length));
+  }
+
+  @Test
+  public void testCopyFromPipe() throws IOException, InterruptedException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File fifo = new File(folder.getRoot(), "fifo");
+    assumeTrue(Utils.mkfifo(fifo));
+    File outFile = new File(folder.getRoot(), "out");
+
+    // A pipe isn't seekable
+    Thread writer = Utils.writeFifo(fifo, sample);
+    FileInputStream is = new FileInputStream(fifo);
+    FileOutputStream os = new FileOutputStream(outFile);
+    assertEquals(sample.length, IOUtils.copy(is, os));
+    is.close();
+    os.close();
+    writer.join();
+
+    InputStream in = new FileInputStream(outFile);
+    assertArrayEquals(sample, IOUtils.toByteArray(in));
+    in.close();
+  }
+
+  @Test
+  public void testToByteArrayFromPipe() throws IOException, InterruptedException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File fifo = new File(folder.getRoot(), "fifo");
+    assumeTrue(Utils.mkfifo(fifo));
+
+    Thread writer = Utils.writeFifo(fifo, sample);
+    FileInputStream is = new FileInputStream(fifo);
+    assertArrayEquals(sample, IOUtils.toByteArray(is));
+    is.close();
+    writer.join();
+
+    writer = Utils.writeFifo(fifo, sample);
+    is = new FileInputStream(fifo);
+    assertArrayEquals(sample, IOUtils.readAll(is.getChannel()));
+    is.close();
+    writer.join();
+  }
+
+  @Test
+  public void testTransfer() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    final File inFile = writeNewFile(sample, 1);
+
+    // FileChannel to WritableByteChannel
+    FileChannel fileIn = new FileInputStream(inFile).getChannel();
+    fileIn.position(3);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    assertEquals(sample.length - 3, IOUtils.transfer(fileIn, Channels.newChannel(baos)));
+    assertEquals(sample.length, fileIn.position());
+    fileIn.close();
+    assertArrayEquals(copyOfRange(sample, 3, sample.length), baos.toByteArray());
+
+    // ReadableByteChannel to FileChannel
+    File outFile = writeNewFile(new byte[] { 1, 2, 3 }, 1);
+    FileChannel fileOut = new FileOutputStream(outFile, true).getChannel();
+    assertEquals(sample.length,
+        IOUtils.transfer(Channels.newChannel(new ByteArrayInputStream(sample)), fileOut));
+    assertEquals(sample.length + 3, fileOut.position());
+    fileOut.close();
+    InputStream in = new FileInputStream(outFile);
+    byte[] result = IOUtils.toByteArray(in);
+    in.close();
+    assertArrayEquals(new byte[] { 1, 2, 3 }, copyOfRange(result, 0, 3));
+    assertArrayEquals(sample, copyOfRange(result, 3, result.length));
+
+    // ReadableByteChannel to WritableByteChannel
+    baos = new ByteArrayOutputStream();
+    assertEquals(sample.length, IOUtils.transfer(
+        Channels.newChannel(new ByteArrayInputStream(sample)), Channels.newChannel(baos)));
+    assertArrayEquals(sample, baos.toByteArray());
+
+    assertEquals(0, IOUtils.transfer(null, Channels.newChannel(baos)));
+    assertEquals(0, IOUtils.transfer(Channels.newChannel(new ByteArrayInputStream(sample)), null));
+  }
+
   private File writeNewFile(byte[] bytes, int repeat) throws IOException {
     TemporaryFolder folder = new TemporaryFolder();
     folder.create();
@@ -176,6 +317,76 @@ public class IOUtilsTest {
     is.close();
   }
 
+  /**
+   * Returns at most {@code max} bytes per read.
+   */
+  private static InputStream newTrickleStream(byte[] bytes, final int max) {
+    return new ByteArrayInputStream(bytes) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, max));
+      }
+    };
+  }
+
+  @Test
+  public void testToStringChunked() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1024 * 4; i++) {
+      sb.append("abc").append(NIHAO).append('\n').append("\ud83d\ude00");
+    }
+    final String string = sb.toString();
+    final byte[] utf8 = string.getBytes("UTF-8");
+    final byte[] utf16 = string.getBytes("UTF-16");
+
+    for (int max: new int[] { 1, 2, 3, 5, 7, 1000, Integer.MAX_VALUE }) {
+      assertEquals(string, IOUtils.toString(newTrickleStream(utf8, max)));
+      assertEquals(string, IOUtils.toString(newTrickleStream(utf16, max), "UTF-16"));
+    }
+
+    // ASCII only
+    sb.setLength(0);
+    for (int i = 0; i < 1024 * 4; i++) {
+      sb.append("0123456789");
+    }
+    final String ascii = sb.toString();
+    assertEquals(ascii, IOUtils.toString(newTrickleStream(ascii.getBytes("UTF-8"), 1000)));
+    assertEquals(ascii,
+        IOUtils.toString(new ByteArrayInputStream(ascii.getBytes("US-ASCII")), "US-ASCII"));
+    assertEquals("", IOUtils.toString(new ByteArrayInputStream(new byte[0])));
+  }
+
+  @Test
+  public void testToStringMalformed() throws IOException {
+    final byte[][] samples = {
+        { (byte) 0xe4, (byte) 0xbd },
+        { 'a', (byte) 0xe4, (byte) 0xbd, 'b' },
+        { (byte) 0xff, 'a', (byte) 0x80 },
+        { 'a', (byte) 0xf0, (byte) 0x9f, (byte) 0x98 },
+    };
+    for (byte[] sample: samples) {
+      assertEquals(new String(sample, "UTF-8"), IOUtils.toString(new ByteArrayInputStream(sample)));
+      assertEquals(new String(sample, "US-ASCII"),
+          IOUtils.toString(new ByteArrayInputStream(sample), "US-ASCII"));
+    }
+  }
+
+  @Test
+  public void testToStringUnsupportedCharset() throws IOException {
+    try {
+      IOUtils.toString(new ByteArrayInputStream(NIHAO_UTF_8), "NOT-A-CHARSET");
+      fail();
+    } catch (UnsupportedEncodingException e) {
+      // Ignore
+    }
+    try {
+      IOUtils.toString(new ByteArrayInputStream(NIHAO_UTF_8), "NOT A CHARSET");
+      fail();
+    } catch (UnsupportedEncodingException e) {
+      // Ignore
+    }
+  }
+
   @Test
   public void testToStringNull() throws IOException {
     assertEquals(null, IOUtils.toString(null));
@@ -210,4 +421,541 @@ public class IOUtilsTest {
   public void testToByteArrayNull() throws IOException {
     assertEquals(null, IOUtils.toByteArray(null));
   }
+
+  @Test
+  public void testToByteArrayExpectedLength() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 10 + 7);
+
+    // Exact
+    assertArrayEquals(sample,
+        IOUtils.toByteArray(new ByteArrayInputStream(sample), sample.length));
+    // Short
+    assertArrayEquals(sample,
+        IOUtils.toByteArray(new ByteArrayInputStream(sample), sample.length + 100));
+    // Over-long
+    assertArrayEquals(sample,
+        IOUtils.toByteArray(new ByteArrayInputStream(sample), sample.length - 100));
+    assertArrayEquals(sample, IOUtils.toByteArray(new ByteArrayInputStream(sample), 0));
+    // Unknown
+    assertArrayEquals(sample, IOUtils.toByteArray(new ByteArrayInputStream(sample), -1));
+    // Empty
+    assertArrayEquals(new byte[0], IOUtils.toByteArray(new ByteArrayInputStream(new byte[0]), 10));
+
+    assertEquals(null, IOUtils.toByteArray((InputStream) null, 10));
+  }
+
+  @Test
+  public void testReadAll() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    final File file = writeNewFile(sample, 1);
+
+    FileInputStream fis = new FileInputStream(file);
+    assertArrayEquals(sample, IOUtils.readAll(fis.getChannel()));
+    fis.close();
+
+    // From the current position
+    FileInputStream is = new FileInputStream(file);
+    assertEquals(7, is.skip(7));
+    assertArrayEquals(copyOfRange(sample, 7, sample.length), IOUtils.toByteArray(is));
+    assertEquals(EOF, is.read());
+    is.close();
+
+    // Empty file
+    fis = new FileInputStream(writeNewFile(new byte[0], 1));
+    assertArrayEquals(new byte[0], IOUtils.readAll(fis.getChannel()));
+    fis.close();
+
+    assertEquals(null, IOUtils.readAll(null));
+  }
+
+  private static List<String> readLines(InputStream is, Charset charset) throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    long count = IOUtils.readLines(is, charset, new IOUtils.LineCallback() {
+      @Override
+      public boolean onLine(CharSequence line) {
+        lines.add(line.toString());
+        return true;
+      }
+    });
+    assertEquals(lines.size(), count);
+    return lines;
+  }
+
+  private static List<String> readLinesWithBufferedReader(byte[] bytes, Charset charset)
+      throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes), charset));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  @Test
+  public void testReadLines() throws IOException {
+    final String[] samples = {
+        "",
+        "a",
+        "a\n",
+        "\n",
+        "\n\n",
+        "\r\n\r\n",
+        "\r\r\n\n\r",
+        "abc\ndef\r\nghi\rjkl",
+        "你好\r\n世界\n\ud83d\ude00\r",
+    };
+    for (String sample: samples) {
+      for (String charsetName: new String[] { "UTF-8", "UTF-16", "GBK" }) {
+        Charset charset = Charset.forName(charsetName);
+        byte[] bytes = sample.getBytes(charsetName);
+        for (int max: new int[] { 1, 2, 3, Integer.MAX_VALUE }) {
+          assertEquals(readLinesWithBufferedReader(bytes, charset),
+              readLines(newTrickleStream(bytes, max), charset));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadLinesLongLine() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1024 * 10; i++) {
+      sb.append(i % 10);
+      if (i % 5000 == 4999) {
+        sb.append("\r");
+      }
+      if (i % 3000 == 2999) {
+        sb.append("\n");
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      sb.append(i).append("\r\n");
+    }
+    byte[] bytes = sb.toString().getBytes("UTF-8");
+    for (int max: new int[] { 1, 4095, 8191, 8192, Integer.MAX_VALUE }) {
+      assertEquals(readLinesWithBufferedReader(bytes, IOUtils.UTF_8),
+          readLines(newTrickleStream(bytes, max), IOUtils.UTF_8));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testReadLinesSurrogateAtBoundary() throws IOException {
+    // Only one slot is left for the surrogate pair
+    for (String prefix: new String[] { "", "x\n", "xy\n" }) {
+      StringBuilder sb = new StringBuilder(prefix);
+      while (sb.length() < 1024 * 8 - 1) {
+        sb.append('a');
+      }
+      sb.append("\ud83d\ude00\n\ud83d\ude00");
+      byte[] bytes = sb.toString().getBytes("UTF-8");
+      for (int max: new int[] { 1, 3, Integer.MAX_VALUE }) {
+        assertEquals(readLinesWithBufferedReader(bytes, IOUtils.UTF_8),
+            readLines(newTrickleStream(bytes, max), IOUtils.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testReadLinesView() throws IOException {
+    final List<String> lines = new ArrayList<String>();
+    byte[] bytes = "abc\ndef\nghi\njkl".getBytes("UTF-8");
+    long count = IOUtils.readLines(new ByteArrayInputStream(bytes), IOUtils.UTF_8,
+        new IOUtils.LineCallback() {
+          @Override
+          public boolean onLine(CharSequence line) {
+            assertEquals(3, line.length());
+            lines.add(String.valueOf(line.charAt(1)) + line.subSequence(2, 3));
+            return lines.size() < 2;
+          }
+        });
+    // Stopped
+    assertEquals(2, count);
+    assertEquals(Arrays.asList("bc", "ef"), lines);
+
+    assertEquals(0, IOUtils.readLines(null, IOUtils.UTF_8, null));
+    assertEquals(0, IOUtils.readLines(new ByteArrayInputStream(bytes), null, null));
+  }
+
+  @Test
+  public void testLimited() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 10 + 7);
+
+    assertArrayEquals(sample,
+        IOUtils.toByteArrayLimited(newTrickleStream(sample, 1000), sample.length));
+    assertArrayEquals(sample,
+        IOUtils.toByteArrayLimited(new ByteArrayInputStream(sample), Integer.MAX_VALUE));
+    assertArrayEquals(new byte[0],
+        IOUtils.toByteArrayLimited(new ByteArrayInputStream(new byte[0]), 0));
+
+    InputStream is = new ByteArrayInputStream(sample);
+    try {
+      IOUtils.toByteArrayLimited(is, sample.length - 1);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    // Fail fast
+    assertEquals(0, is.available());
+    is = new ByteArrayInputStream(sample);
+    try {
+      IOUtils.toByteArrayLimited(is, 10);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    assertEquals(sample.length - 11, is.available());
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1024; i++) {
+      sb.append(NIHAO);
+    }
+    String string = sb.toString();
+    byte[] utf8 = string.getBytes("UTF-8");
+    assertEquals(string,
+        IOUtils.toStringLimited(new ByteArrayInputStream(utf8), IOUtils.UTF_8, utf8.length));
+    try {
+      IOUtils.toStringLimited(new ByteArrayInputStream(utf8), IOUtils.UTF_8, utf8.length - 1);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+
+    assertEquals(null, IOUtils.toByteArrayLimited(null, 10));
+    assertEquals(null, IOUtils.toStringLimited(null, IOUtils.UTF_8, 10));
+    assertEquals(null, IOUtils.toStringLimited(new ByteArrayInputStream(utf8), null, 10));
+    try {
+      IOUtils.toByteArrayLimited(new ByteArrayInputStream(utf8), -1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testPooled() throws IOException {
+    final BufferPool pool = new BufferPool();
+
+    // Fits in the borrowed buffer
+    byte[] sample = Utils.newSample(100);
+    assertArrayEquals(sample, IOUtils.toByteArray(new ByteArrayInputStream(sample), pool));
+    // Larger than the borrowed buffer
+    sample = Utils.newSample(1024 * 100 + 7);
+    assertArrayEquals(sample, IOUtils.toByteArray(new ByteArrayInputStream(sample), pool));
+    sample = Utils.newSample(1024 * 8);
+    assertArrayEquals(sample, IOUtils.toByteArray(new ByteArrayInputStream(sample), pool));
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(sample.length, IOUtils.copy(new ByteArrayInputStream(sample), os, pool));
+    assertArrayEquals(sample, os.toByteArray());
+
+    assertEquals(NIHAO,
+        IOUtils.toString(new ByteArrayInputStream(NIHAO_UTF_8), IOUtils.UTF_8, pool));
+    StringBuilder sb = new StringBuilder();
+    ByteArrayOutputStream gbk = new ByteArrayOutputStream();
+    for (int i = 0; i < 1024 * 8; i++) {
+      sb.append(NIHAO);
+      gbk.write(NIHAO_GBK);
+    }
+    assertEquals(sb.toString(), IOUtils.toString(
+        new ByteArrayInputStream(gbk.toByteArray()), Charset.forName("GBK"), pool));
+
+    // Only the first call allocates
+    assertEquals(1, pool.getMissCount());
+    assertEquals(5, pool.getHitCount());
+
+    assertEquals(null, IOUtils.toByteArray(null, pool));
+    assertEquals(null, IOUtils.toString(null, IOUtils.UTF_8, pool));
+    assertEquals(0, IOUtils.copy(null, os, pool));
+  }
+
+  @Test
+  public void testCopyChecksum() throws IOException, NoSuchAlgorithmException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+
+    CRC32 expectedCrc32 = new CRC32();
+    expectedCrc32.update(sample);
+    Adler32 expectedAdler32 = new Adler32();
+    expectedAdler32.update(sample);
+    byte[] expectedSha256 = MessageDigest.getInstance("SHA-256").digest(sample);
+    byte[] expectedMd5 = MessageDigest.getInstance("MD5").digest(sample);
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    CRC32 crc32 = new CRC32();
+    Adler32 adler32 = new Adler32();
+    assertEquals(sample.length,
+        IOUtils.copy(newTrickleStream(sample, 1000), os, crc32, adler32));
+    assertArrayEquals(sample, os.toByteArray());
+    assertEquals(expectedCrc32.getValue(), crc32.getValue());
+    assertEquals(expectedAdler32.getValue(), adler32.getValue());
+
+    os.reset();
+    MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+    assertEquals(sample.length, IOUtils.copy(new ByteArrayInputStream(sample), os, sha256));
+    assertArrayEquals(sample, os.toByteArray());
+    assertArrayEquals(expectedSha256, sha256.digest());
+
+    // File streams
+    File inFile = writeNewFile(sample, 1);
+    File outFile = writeNewFile(new byte[0], 1);
+    InputStream is = new FileInputStream(inFile);
+    os = new ByteArrayOutputStream();
+    OutputStream fos = new FileOutputStream(outFile);
+    crc32 = new CRC32();
+    MessageDigest md5 = MessageDigest.getInstance("MD5");
+    assertEquals(sample.length, IOUtils.copy(is, fos,
+        new Checksum[] { crc32 }, new MessageDigest[] { sha256, md5 }));
+    is.close();
+    fos.close();
+    assertArrayEquals(sample, FileUtils.toByteArray(outFile));
+    assertEquals(expectedCrc32.getValue(), crc32.getValue());
+    assertArrayEquals(expectedSha256, sha256.digest());
+    assertArrayEquals(expectedMd5, md5.digest());
+
+    assertEquals(0, IOUtils.copy(null, os, new CRC32()));
+    assertEquals(sample.length,
+        IOUtils.copy(new ByteArrayInputStream(sample), os, (Checksum[]) null, null));
+  }
+
+  @Test
+  public void testCopyPipelined() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    final BufferPool pool = new BufferPool();
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(sample.length, IOUtils.copyPipelined(newTrickleStream(sample, 1000), os));
+    assertArrayEquals(sample, os.toByteArray());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    for (int i = 0; i < 2; i++) {
+      os.reset();
+      assertEquals(sample.length, IOUtils.copyPipelined(
+          new ByteArrayInputStream(sample), os, executor, pool, 2));
+      assertArrayEquals(sample, os.toByteArray());
+    }
+    executor.shutdown();
+    // Buffers of the first copy are reused in the second copy
+    assertEquals(2, pool.getMissCount());
+    assertEquals(2, pool.getHitCount());
+
+    os.reset();
+    assertEquals(0, IOUtils.copyPipelined(new ByteArrayInputStream(new byte[0]), os));
+    assertEquals(0, os.size());
+    assertEquals(0, IOUtils.copyPipelined(null, os));
+    assertEquals(0, IOUtils.copyPipelined(new ByteArrayInputStream(sample), null));
+
+    try {
+      IOUtils.copyPipelined(new ByteArrayInputStream(sample), os, null, null, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCopyPipelinedInline() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 100 + 7);
+    final BufferPool pool = new BufferPool();
+
+    // Runs the reader on the current thread
+    Executor direct = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(sample.length, IOUtils.copyPipelined(
+        newTrickleStream(sample, 1000), os, direct, pool, 2));
+    assertArrayEquals(sample, os.toByteArray());
+    assertEquals(2, pool.getMissCount());
+
+    // Saturated pool with CallerRunsPolicy
+    final CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // Ignore
+        }
+      }
+    });
+    os.reset();
+    assertEquals(sample.length, IOUtils.copyPipelined(
+        new ByteArrayInputStream(sample), os, executor, pool, 2));
+    assertArrayEquals(sample, os.toByteArray());
+    release.countDown();
+    executor.shutdown();
+    // Buffers are back to the pool
+    assertEquals(2, pool.getMissCount());
+    assertEquals(2, pool.getHitCount());
+
+    // Rejected
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    };
+    try {
+      IOUtils.copyPipelined(new ByteArrayInputStream(sample), os, rejecting, pool, 2);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Ignore
+    }
+    assertEquals(2, pool.getMissCount());
+    assertEquals(4, pool.getHitCount());
+    os.reset();
+    assertEquals(sample.length, IOUtils.copyPipelined(
+        new ByteArrayInputStream(sample), os, direct, pool, 2));
+    assertEquals(2, pool.getMissCount());
+  }
+
+  @Test
+  public void testCopyPipelinedOverlap() throws IOException {
+    // The second read waits for the first write,
+    // it never returns if reading and writing are on the same thread.
+    final CountDownLatch written = new CountDownLatch(1);
+    final AtomicBoolean timeout = new AtomicBoolean();
+    InputStream is = new InputStream() {
+      private int reads;
+      @Override
+      public int read() throws IOException {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        switch (reads++) {
+          case 0:
+            b[off] = 1;
+            return 1;
+          case 1:
+            try {
+              if (!written.await(10, TimeUnit.SECONDS)) timeout.set(true);
+            } catch (InterruptedException e) {
+              throw new InterruptedIOException();
+            }
+            b[off] = 2;
+            return 1;
+          default:
+            return EOF;
+        }
+      }
+    };
+    ByteArrayOutputStream os = new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] b, int off, int len) {
+        super.write(b, off, len);
+        written.countDown();
+      }
+    };
+    assertEquals(2, IOUtils.copyPipelined(is, os));
+    assertArrayEquals(new byte[] { 1, 2 }, os.toByteArray());
+    assertFalse(timeout.get());
+  }
+
+  @Test
+  public void testCopyPipelinedReadError() {
+    InputStream is = new InputStream() {
+      private int reads;
+      @Override
+      public int read() throws IOException {
+        if (reads++ < 100) return 1;
+        throw new IOException("read");
+      }
+    };
+    try {
+      IOUtils.copyPipelined(is, new ByteArrayOutputStream());
+      fail();
+    } catch (IOException e) {
+      assertEquals("read", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testCopyPipelinedWriteError() throws InterruptedException {
+    final AtomicInteger reads = new AtomicInteger();
+    InputStream is = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        reads.incrementAndGet();
+        return 1;
+      }
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        reads.incrementAndGet();
+        return len;
+      }
+    };
+    OutputStream os = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("write");
+      }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        throw new IOException("write");
+      }
+    };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      IOUtils.copyPipelined(is, os, executor, new BufferPool(), 2);
+      fail();
+    } catch (IOException e) {
+      assertEquals("write", e.getMessage());
+    } finally {
+      executor.shutdown();
+    }
+    // The reader stops, or the executor never terminates
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertTrue(reads.get() > 0);
+  }
+
+  @Test
+  public void testCopyPipelinedInterrupted() {
+    InputStream is = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return len;
+      }
+    };
+    Thread.currentThread().interrupt();
+    try {
+      IOUtils.copyPipelined(is, new ByteArrayOutputStream());
+      fail();
+    } catch (InterruptedIOException e) {
+      assertTrue(Thread.interrupted());
+    } catch (IOException e) {
+      fail();
+    }
+  }
+
+  @Test
+  public void testCopyBuffer() throws IOException {
+    final byte[] sample = Utils.newSample(1024 * 10 + 7);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    assertEquals(sample.length, IOUtils.copy(new ByteArrayInputStream(sample), os, new byte[13]));
+    assertArrayEquals(sample, os.toByteArray());
+
+    try {
+      IOUtils.copy(new ByteArrayInputStream(sample), os, new byte[0]);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class MultiReplacerTest {
+
+  @Test
+  public void testReplace() {
+    MultiReplacer replacer = new MultiReplacer(new String[]{"ab", "d"}, new String[]{"d", "t"});
+    assertEquals("dcte", replacer.replace("abcde"));
+    assertEquals("tcte", replacer.replaceRepeatedly("abcde"));
+    assertEquals(null, replacer.replace(null));
+    assertEquals("", replacer.replace(""));
+    String text = "xyz";
+    assertSame(text, replacer.replace(text));
+
+    // The first one starts first
+    replacer = new MultiReplacer(new String[]{"bc", "abcd"}, new String[]{"1", "2"});
+    assertEquals("a2", replacer.replace("aabcd"));
+    assertEquals("aa1", replacer.replace("aabc"));
+
+    // The lowest index wins for the same start
+    replacer = new MultiReplacer(new String[]{"abc", "ab", "abcd"}, new String[]{"1", "2", "3"});
+    assertEquals("1d", replacer.replace("abcd"));
+    assertEquals("2x", replacer.replace("abx"));
+
+    // Null and empty ones are ignored
+    replacer = new MultiReplacer(new String[]{null, "", "a", "b"}, new String[]{"1", "2", null, "3"});
+    assertEquals("a3a", replacer.replace("aba"));
+
+    replacer = new MultiReplacer(null, null);
+    assertEquals("aba", replacer.replace("aba"));
+
+    try {
+      new MultiReplacer(new String[]{"a"}, new String[]{"b", "c"});
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+
+    replacer = new MultiReplacer(new String[]{"ab", "d"}, new String[]{"d", "ab"});
+    try {
+      replacer.replaceRepeatedly("abcde");
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testSameAsReplaceEach() {
+    Random random = new Random(42);
+    for (int round = 0; round < 2000; round++) {
+      String[] searchList = new String[1 + random.nextInt(16)];
+      String[] replacementList = new String[searchList.length];
+      for (int i = 0; i < searchList.length; i++) {
+        searchList[i] = randomString(random, random.nextInt(5));
+        replacementList[i] = randomString(random, random.nextInt(3)).toUpperCase();
+      }
+      // Long texts with many search strings are replaced with a MultiReplacer
+      String text = randomString(random, round % 20 == 0
+          ? MultiReplacer.MIN_TEXT_LENGTH + random.nextInt(100) : random.nextInt(40));
+
+      String expected = replaceEach(text, searchList, replacementList);
+      assertEquals(expected, new MultiReplacer(searchList, replacementList).replace(text));
+      assertEquals(expected, StringUtils.replaceEach(text, searchList, replacementList));
+    }
+  }
+
+  @Test
+  public void testIsWorthwhile() {
+    String[] few = new String[MultiReplacer.MIN_SEARCH_COUNT - 1];
+    String[] many = new String[MultiReplacer.MIN_SEARCH_COUNT];
+    String shortText = randomString(new Random(1), MultiReplacer.MIN_TEXT_LENGTH - 1);
+    String longText = randomString(new Random(1), MultiReplacer.MIN_TEXT_LENGTH);
+    assertFalse(MultiReplacer.isWorthwhile(few, longText));
+    assertFalse(MultiReplacer.isWorthwhile(many, shortText));
+    assertTrue(MultiReplacer.isWorthwhile(many, longText));
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = "abc".charAt(random.nextInt(3));
+    }
+    return new String(chars);
+  }
+
+  // The indexOf() version
+  private static String replaceEach(String text, String[] searchList, String[] replacementList) {
+    StringBuilder sb = new StringBuilder();
+    int start = 0;
+    for (;;) {
+      int textIndex = -1;
+      int replaceIndex = -1;
+      for (int i = 0; i < searchList.length; i++) {
+        if (searchList[i].isEmpty()) continue;
+        int index = text.indexOf(searchList[i], start);
+        if (index != -1 && (textIndex == -1 || index < textIndex)) {
+          textIndex = index;
+          replaceIndex = i;
+        }
+      }
+      if (textIndex == -1) break;
+      sb.append(text, start, textIndex).append(replacementList[replaceIndex]);
+      start = textIndex + searchList[replaceIndex].length();
+    }
+    return sb.append(text, start, text.length()).toString();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.junit.Test;
+
+public class PatternCacheTest {
+
+  @Test
+  public void testGet() {
+    PatternCache cache = new PatternCache(4);
+    Pattern pattern = cache.get("a+");
+    assertEquals("a+", pattern.pattern());
+    assertEquals(0, pattern.flags());
+    assertSame(pattern, cache.get("a+"));
+    assertSame(pattern, cache.get("a+", 0));
+
+    // Flags are a part of the key
+    Pattern dotAll = cache.get("a+", Pattern.DOTALL);
+    assertNotSame(pattern, dotAll);
+    assertEquals(Pattern.DOTALL, dotAll.flags());
+
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(4, cache.getMaxSize());
+
+    try {
+      cache.get("(");
+      fail();
+    } catch (PatternSyntaxException e) {
+      // Ignore
+    }
+    assertEquals(2, cache.size());
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test
+  public void testEvict() {
+    PatternCache cache = new PatternCache(2);
+    Pattern a = cache.get("a");
+    cache.get("b");
+    // a is used recently
+    assertSame(a, cache.get("a"));
+    cache.get("c");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+
+    long misses = cache.getMissCount();
+    assertSame(a, cache.get("a"));
+    cache.get("c");
+    assertEquals(misses, cache.getMissCount());
+    cache.get("b");
+    assertEquals(misses + 1, cache.getMissCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testPrecompile() {
+    PatternCache cache = new PatternCache(4);
+    Pattern pattern = cache.precompile("a+", Pattern.DOTALL);
+    assertSame(pattern, cache.precompile("a+", Pattern.DOTALL));
+    assertEquals(0, cache.getMissCount());
+    assertSame(pattern, cache.get("a+", Pattern.DOTALL));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+
+    try {
+      new PatternCache(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final PatternCache cache = new PatternCache(8);
+    final int threadCount = 4;
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    for (int i = 0; i < threadCount; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 10000; j++) {
+              String regex = "a{" + (j % 16) + "}";
+              assertEquals(regex, cache.get(regex).pattern());
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(null, error.get());
+    assertTrue(cache.size() <= 8);
+    assertEquals(threadCount * 10000, cache.getHitCount() + cache.getMissCount());
+  }
+
+  @Test
+  public void testStringUtils() {
+    PatternCache cache = StringUtils.getPatternCache();
+    cache.precompile("[a-z]", Pattern.DOTALL);
+    long hits = cache.getHitCount();
+    assertEquals("ABC___123", StringUtils.replacePattern("ABCabc123", "[a-z]", "_"));
+    assertEquals(hits + 1, cache.getHitCount());
+
+    cache.precompile("[a-z]", 0);
+    hits = cache.getHitCount();
+    assertEquals("ABC___123", StringUtils.replaceAll("ABCabc123", "[a-z]", "_"));
+    assertEquals("ABC_bc123", StringUtils.replaceFirst("ABCabc123", "[a-z]", "_"));
+    assertEquals("ABC123", StringUtils.removeAll("ABCabc123", "[a-z]"));
+    assertEquals("ABCbc123", StringUtils.removeFirst("ABCabc123", "[a-z]"));
+    assertEquals(hits + 4, cache.getHitCount());
+  }
+}
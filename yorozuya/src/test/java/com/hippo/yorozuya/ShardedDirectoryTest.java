@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedDirectoryTest {
+
+  @Test
+  public void testLayout() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = new File(folder.getRoot(), "root");
+    ShardedDirectory dir = new ShardedDirectory(root, 256, 2);
+    assertEquals(root, dir.getRoot());
+    assertEquals(256, dir.getFanOut());
+    assertEquals(2, dir.getDepth());
+
+    File file = dir.getFile("abc");
+    assertEquals("abc", file.getName());
+    File shard = file.getParentFile();
+    assertEquals(dir.getShard("abc"), shard);
+    assertEquals(2, shard.getName().length());
+    assertEquals(2, shard.getParentFile().getName().length());
+    assertEquals(root, shard.getParentFile().getParentFile());
+    // Stable
+    assertEquals(file, dir.getFile("abc"));
+    assertFalse(shard.exists());
+
+    assertEquals(file, dir.prepareFile("abc"));
+    assertTrue(shard.isDirectory());
+    assertTrue(file.createNewFile());
+    assertTrue(dir.delete("abc"));
+    assertFalse(file.exists());
+
+    // Shard names are padded
+    ShardedDirectory dir2 = new ShardedDirectory(root, 1000, 3);
+    File shard2 = dir2.getShard("abc");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(3, shard2.getName().length());
+      assertTrue(Integer.parseInt(shard2.getName(), 16) < 1000);
+      shard2 = shard2.getParentFile();
+    }
+  }
+
+  @Test
+  public void testSpread() {
+    ShardedDirectory dir = new ShardedDirectory(new File("root"), 16, 1);
+    int[] counts = new int[16];
+    for (int i = 0; i < 1600; i++) {
+      counts[Integer.parseInt(dir.getShard("file" + i).getName(), 16)]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 50);
+    }
+  }
+
+  @Test
+  public void testIllegalArgument() {
+    int[][] args = {{1, 1}, {4097, 1}, {16, 0}, {256, 5}};
+    for (int[] arg : args) {
+      try {
+        new ShardedDirectory(new File("root"), arg[0], arg[1]);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+    new ShardedDirectory(new File("root"), 256, 4);
+
+    ShardedDirectory dir = new ShardedDirectory(new File("root"), 16, 1);
+    String[] keys = {"", ".", "..", "a/b", "a" + File.separator + "b"};
+    for (String key : keys) {
+      try {
+        dir.getFile(key);
+        fail(key);
+      } catch (IllegalArgumentException e) {
+        // Ignore
+      }
+    }
+  }
+
+  @Test
+  public void testForEachAndClear() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File root = new File(folder.getRoot(), "root");
+    ShardedDirectory dir = new ShardedDirectory(root, 4, 2);
+
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < 100; i++) {
+      String key = "key" + i;
+      assertTrue(dir.prepareFile(key).createNewFile());
+      expected.add(key);
+    }
+    assertEquals(16, dir.listShards().size());
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 2; i++) {
+        final Set<String> keys = Collections.synchronizedSet(new HashSet<String>());
+        dir.forEach(new ShardedDirectory.FileCallback() {
+          @Override
+          public void onFile(String key, File file) {
+            assertEquals(key, file.getName());
+            keys.add(key);
+          }
+        }, i == 0 ? null : executor);
+        assertEquals(expected, keys);
+      }
+
+      FileUtils.DeleteResult result = dir.clear(executor);
+      assertTrue(result.isSuccessful());
+      assertEquals(100 + 16 + 4 + 1, result.getDeletedCount());
+      assertFalse(root.exists());
+      assertEquals(0, dir.listShards().size());
+
+      // Recreated on demand
+      assertTrue(dir.prepareFile("key").createNewFile());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillBufferTest {
+
+  private static byte[] read(SpillBuffer buffer) throws IOException {
+    InputStream is = buffer.openInputStream();
+    byte[] bytes = IOUtils.toByteArray(is);
+    is.close();
+
+    ReadableByteChannel channel = buffer.openChannel();
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    IOUtils.transfer(channel, Channels.newChannel(os));
+    channel.close();
+    assertArrayEquals(bytes, os.toByteArray());
+
+    return bytes;
+  }
+
+  @Test
+  public void testInMemory() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = new File(folder.getRoot(), "spill");
+
+    byte[] sample = Utils.newSample(1000);
+    SpillBuffer buffer = new SpillBuffer(1000, dir);
+    buffer.write(sample[0]);
+    buffer.write(sample, 1, sample.length - 1);
+    buffer.close();
+
+    assertFalse(buffer.isSpilled());
+    assertNull(buffer.getFile());
+    assertFalse(dir.exists());
+    assertEquals(sample.length, buffer.size());
+    assertArrayEquals(sample, read(buffer));
+    assertTrue(buffer.delete());
+  }
+
+  @Test
+  public void testSpill() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File dir = new File(folder.getRoot(), "spill");
+
+    byte[] sample = Utils.newSample(1024 * 100 + 7);
+    SpillBuffer buffer = new SpillBuffer(1000, dir);
+    buffer.write(sample, 0, 999);
+    assertFalse(buffer.isSpilled());
+    buffer.write(sample[999]);
+    assertFalse(buffer.isSpilled());
+    buffer.write(sample[1000]);
+    assertTrue(buffer.isSpilled());
+    assertEquals(1001, IOUtils.copy(new ByteArrayInputStream(sample, 1001, 1001), buffer));
+    buffer.write(sample, 2002, sample.length - 2002);
+    buffer.close();
+
+    File file = buffer.getFile();
+    assertTrue(file.isFile());
+    assertEquals(dir, file.getParentFile());
+    assertEquals(sample.length, buffer.size());
+    assertEquals(sample.length, file.length());
+    assertArrayEquals(sample, read(buffer));
+    // Read again
+    assertArrayEquals(sample, read(buffer));
+
+    ReadableByteChannel channel = buffer.openChannel();
+    assertTrue(channel instanceof FileChannel);
+    channel.close();
+
+    assertTrue(buffer.delete());
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testZeroMemoryLimit() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    SpillBuffer buffer = new SpillBuffer(0, folder.getRoot());
+    buffer.close();
+    assertFalse(buffer.isSpilled());
+    assertArrayEquals(new byte[0], read(buffer));
+
+    buffer = new SpillBuffer(0, folder.getRoot());
+    buffer.write(1);
+    buffer.close();
+    assertTrue(buffer.isSpilled());
+    assertArrayEquals(new byte[] { 1 }, read(buffer));
+    assertTrue(buffer.delete());
+  }
+
+  @Test
+  public void testState() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    SpillBuffer buffer = new SpillBuffer(10, folder.getRoot());
+    buffer.write(1);
+    try {
+      buffer.openInputStream();
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    buffer.close();
+    try {
+      buffer.write(1);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+    assertTrue(buffer.delete());
+    try {
+      buffer.openChannel();
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+
+    try {
+      new SpillBuffer(-1, folder.getRoot());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testCannotCreateDir() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+
+    SpillBuffer buffer = new SpillBuffer(10, folder.newFile());
+    buffer.write(new byte[10]);
+    try {
+      buffer.write(1);
+      fail();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class SplitTokenizerTest {
+
+  @Test
+  public void testNext() {
+    SplitTokenizer tokenizer = new SplitTokenizer(':');
+    tokenizer.reset("::ab:cd");
+    assertTrue(tokenizer.next());
+    assertEquals(2, tokenizer.start());
+    assertEquals(4, tokenizer.end());
+    assertEquals("ab", tokenizer.token());
+    assertTrue(tokenizer.tokenEquals("ab"));
+    assertFalse(tokenizer.tokenEquals("a"));
+    assertFalse(tokenizer.tokenEquals(null));
+    assertTrue(tokenizer.next());
+    assertEquals("cd", tokenizer.token());
+    assertFalse(tokenizer.next());
+    assertFalse(tokenizer.next());
+
+    try {
+      tokenizer.start();
+      fail();
+    } catch (IllegalStateException e) {
+      // Ignore
+    }
+
+    tokenizer.reset(null);
+    assertFalse(tokenizer.next());
+    tokenizer.reset(new StringBuilder("x"));
+    assertTrue(tokenizer.next());
+    assertEquals("x", tokenizer.token());
+  }
+
+  @Test
+  public void testNthAndCount() {
+    SplitTokenizer tokenizer = new SplitTokenizer(",").preserveAllTokens();
+    tokenizer.reset("a,,c,");
+    assertEquals(4, tokenizer.count());
+    assertTrue(tokenizer.nth(2));
+    assertTrue(tokenizer.tokenEquals("c"));
+    assertTrue(tokenizer.nth(1));
+    assertEquals(2, tokenizer.start());
+    assertEquals(2, tokenizer.end());
+    assertTrue(tokenizer.nth(3));
+    assertTrue(tokenizer.tokenEquals(""));
+    assertFalse(tokenizer.nth(4));
+    assertFalse(tokenizer.nth(-1));
+
+    tokenizer = new SplitTokenizer(null).max(2);
+    tokenizer.reset("  ab  cd ef ");
+    assertEquals(2, tokenizer.count());
+    assertTrue(tokenizer.nth(1));
+    assertEquals("cd ef ", tokenizer.token());
+
+    assertEquals(0, tokenizer.reset("").count());
+    assertEquals(0, tokenizer.reset("   ").count());
+  }
+
+  @Test
+  public void testSameAsSplit() {
+    Random random = new Random(42);
+    String[] separators = {null, ":", ":;"};
+    for (int round = 0; round < 3000; round++) {
+      char[] chars = new char[random.nextInt(12)];
+      for (int i = 0; i < chars.length; i++) {
+        chars[i] = "ab:; \t".charAt(random.nextInt(6));
+      }
+      String str = new String(chars);
+      String separatorChars = separators[random.nextInt(separators.length)];
+      int max = random.nextInt(5) - 1;
+      boolean preserveAllTokens = random.nextBoolean();
+
+      String[] expected = preserveAllTokens
+          ? StringUtils.splitPreserveAllTokens(str, separatorChars, max)
+          : StringUtils.split(str, separatorChars, max);
+      SplitTokenizer tokenizer = new SplitTokenizer(separatorChars).max(max);
+      if (preserveAllTokens) {
+        tokenizer.preserveAllTokens();
+      }
+      String message = "\"" + str + "\" " + separatorChars + " " + max + " " + preserveAllTokens;
+      assertArrayEquals(message, expected, tokens(tokenizer.reset(str)));
+      assertEquals(message, expected.length, tokenizer.count());
+
+      if (max <= 0) {
+        expected = preserveAllTokens
+            ? StringUtils.splitPreserveAllTokens(str, ':')
+            : StringUtils.split(str, ':');
+        tokenizer = new SplitTokenizer(':');
+        if (preserveAllTokens) {
+          tokenizer.preserveAllTokens();
+        }
+        assertArrayEquals(message, expected, tokens(tokenizer.reset(str)));
+      }
+    }
+  }
+
+  private static String[] tokens(SplitTokenizer tokenizer) {
+    List<String> list = new ArrayList<String>();
+    while (tokenizer.next()) {
+      list.add(tokenizer.token());
+    }
+    return list.toArray(new String[list.size()]);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class StringSearcherTest {
+
+  private static final String LONG = "0123456789abcdefghij";
+
+  @Test
+  public void testIndexOf() {
+    StringSearcher searcher = new StringSearcher(LONG);
+    assertEquals(0, searcher.indexOf(LONG));
+    assertEquals(3, searcher.indexOf("xyz" + LONG + "xyz"));
+    assertEquals(26, searcher.indexOf("xyz" + LONG + "xyz" + LONG, 4));
+    assertEquals(-1, searcher.indexOf(LONG.substring(1)));
+    assertEquals(-1, searcher.indexOf(""));
+    assertEquals(0, searcher.indexOf(LONG, -5));
+    assertEquals(-1, searcher.indexOf(LONG, 100));
+
+    // Chars in the same bucket
+    String pattern = "ša" + LONG;
+    searcher = new StringSearcher(pattern);
+    assertEquals(2, searcher.indexOf("aš" + pattern));
+
+    searcher = new StringSearcher("ab");
+    assertEquals(2, searcher.indexOf("xxab"));
+
+    try {
+      new StringSearcher("");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+  }
+
+  @Test
+  public void testReplace() {
+    StringSearcher searcher = new StringSearcher(LONG);
+    String text = "a" + LONG + "b" + LONG + LONG + "c";
+    assertEquals("a-b--c", searcher.replace(text, "-"));
+    assertEquals("a-b" + LONG + LONG + "c", searcher.replace(text, "-", 1));
+    assertEquals("abc", searcher.remove(text));
+    assertEquals(3, searcher.count(text));
+    assertEquals(0, searcher.count(null));
+    assertSame(text, searcher.replace(text, "-", 0));
+    assertSame(text, searcher.replace(text, null));
+    assertNull(searcher.replace(null, "-"));
+    assertEquals("", searcher.replace("", "-"));
+  }
+
+  @Test
+  public void testSameAsIndexOf() {
+    Random random = new Random(42);
+    for (int round = 0; round < 1000; round++) {
+      String pattern = randomString(random, 1 + random.nextInt(40));
+      String text = randomString(random, random.nextInt(400)) + pattern
+          + randomString(random, random.nextInt(400));
+      StringSearcher searcher = new StringSearcher(pattern);
+      int index = -1;
+      do {
+        int expected = text.indexOf(pattern, index + 1);
+        index = searcher.indexOf(text, index + 1);
+        assertEquals(expected, index);
+      } while (index != -1);
+    }
+  }
+
+  @Test
+  public void testStringUtils() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      sb.append(i).append(LONG);
+    }
+    String text = sb.toString();
+    assertEquals(text.replace(LONG, "-"), StringUtils.replace(text, LONG, "-"));
+    assertEquals(text.replace(LONG, ""), StringUtils.remove(text, LONG));
+    assertEquals("0-" + text.substring(1 + LONG.length()), StringUtils.replaceOnce(text, LONG, "-"));
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = "abš".charAt(random.nextInt(3));
+    }
+    return new String(chars);
+  }
+}
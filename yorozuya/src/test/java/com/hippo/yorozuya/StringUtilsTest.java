@@ -23,6 +23,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Locale;
 import java.util.regex.PatternSyntaxException;
 import org.junit.Test;
 
@@ -608,6 +609,37 @@ public class StringUtilsTest {
     assertEquals("farfarfar", StringUtils.replaceIgnoreCase("foofOOfoo", "OO", "ar"));
   }
 
+  @Test
+  public void testReplaceIgnoreCase_Unicode() {
+    // Turkish dotted capital I lowercases to two chars in the root locale
+    assertEquals("\u0130stanbul X", StringUtils.replaceIgnoreCase("\u0130stanbul \u0130zmir", "izmir", "X"));
+    assertEquals("\u0130 ss", StringUtils.replaceIgnoreCase("\u0130 \u00df", "\u00df", "ss"));
+    // Same as String.equalsIgnoreCase(), dotless i upper cases to I
+    assertEquals("xxx", StringUtils.replaceIgnoreCase("I\u0131i", "I", "x"));
+
+    // German sharp s has no single char upper case
+    assertEquals("x", StringUtils.replaceIgnoreCase("STRA\u00dfE", "stra\u00dfe", "x"));
+    assertEquals("STRASSE", StringUtils.replaceIgnoreCase("STRASSE", "stra\u00dfe", "x"));
+    assertEquals("a-b", StringUtils.replaceIgnoreCase("a\u00c4\u00e4b", "\u00e4\u00c4", "-"));
+
+    // Not affected by the default locale
+    Locale locale = Locale.getDefault();
+    try {
+      Locale.setDefault(new Locale("tr", "TR"));
+      assertEquals("x", StringUtils.replaceIgnoreCase("TITLE", "title", "x"));
+      assertEquals("x", StringUtils.removeIgnoreCase("xTITLE", "title"));
+      assertEquals("a-TITLE", StringUtils.replaceOnceIgnoreCase("atitleTITLE", "TITLE", "-"));
+    } finally {
+      Locale.setDefault(locale);
+    }
+
+    // Non-letters in ASCII aren't folded
+    assertEquals("@`", StringUtils.replaceIgnoreCase("@`", "`", "`"));
+    assertEquals("@", StringUtils.replaceIgnoreCase("@`", "`", ""));
+    assertEquals("[{", StringUtils.replaceIgnoreCase("[{", "{", "{"));
+    assertEquals("{", StringUtils.replaceIgnoreCase("[{", "[", ""));
+  }
+
   @Test
   public void testReplacePattern() {
     assertNull(StringUtils.replacePattern(null, "", ""));
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.yorozuya;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrashTest {
+
+  /**
+   * Runs tasks when asked.
+   */
+  private static final class ManualExecutor implements Executor {
+
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.remove(0).run();
+      }
+    }
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File trashDir = new File(folder.getRoot(), "trash");
+    File live = folder.newFolder("live");
+    Utils.createFiles(live, "a/b/", "a/file", "a/b/file");
+
+    ManualExecutor executor = new ManualExecutor();
+    Trash trash = Trash.open(trashDir, executor);
+    assertEquals(trashDir, trash.getDirectory());
+    executor.runAll();
+
+    // Moved at once, purged later
+    File target = new File(live, "a");
+    assertTrue(trash.delete(target));
+    assertFalse(target.exists());
+    assertEquals(1, trashDir.list().length);
+    assertEquals(1, executor.tasks.size());
+
+    // Only one purge is scheduled
+    File file = new File(live, "file");
+    assertTrue(file.createNewFile());
+    assertTrue(trash.delete(file));
+    assertEquals(2, trashDir.list().length);
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    assertEquals(0, trashDir.list().length);
+
+    // Same name twice
+    assertTrue(file.createNewFile());
+    assertTrue(trash.delete(file));
+    assertTrue(file.createNewFile());
+    assertTrue(trash.delete(file));
+    assertEquals(2, trashDir.list().length);
+    assertTrue(trash.purgeNow());
+    assertEquals(0, trashDir.list().length);
+
+    // Not exist
+    assertTrue(trash.delete(new File(live, "not-exist")));
+    assertTrue(trash.delete(null));
+  }
+
+  @Test
+  public void testResume() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File trashDir = new File(folder.getRoot(), "trash");
+    File live = folder.newFolder("live");
+    Utils.createFiles(live, "a/b/", "a/file", "a/b/file");
+
+    // The process dies before purging
+    ManualExecutor executor = new ManualExecutor();
+    Trash trash = Trash.open(trashDir, executor);
+    executor.runAll();
+    assertTrue(trash.delete(new File(live, "a")));
+    assertEquals(1, trashDir.list().length);
+
+    // Purged on the next start
+    executor = new ManualExecutor();
+    Trash.open(trashDir, executor);
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(0, trashDir.list().length);
+  }
+
+  @Test
+  public void testDefaultExecutor() throws IOException, InterruptedException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File trashDir = new File(folder.getRoot(), "trash");
+    File live = folder.newFolder("live");
+    Utils.createFiles(live, "a/b/", "a/file", "a/b/file");
+
+    Trash trash = Trash.open(trashDir, null);
+    assertTrue(trash.delete(new File(live, "a")));
+    for (int i = 0; i < 100 && trashDir.list().length != 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, trashDir.list().length);
+  }
+
+  @Test
+  public void testIllegalArgument() throws IOException {
+    TemporaryFolder folder = new TemporaryFolder();
+    folder.create();
+    File live = folder.newFolder("live");
+    Trash trash = Trash.open(new File(live, "trash"), new ManualExecutor());
+    try {
+      trash.delete(live);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+    try {
+      trash.delete(trash.getDirectory());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Ignore
+    }
+    assertTrue(live.isDirectory());
+  }
+}
@@ -20,6 +20,11 @@ package com.hippo.yorozuya;
  * Created by Hippo on 1/22/2017.
  */
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 public final class Utils {
   private Utils() {}
 
@@ -56,4 +61,136 @@ public final class Utils {
       throw new AssertionError(format(null, Double.valueOf(expected), Double.valueOf(actual)));
     }
   }
+
+  /**
+   * Returns {@code size} bytes which don't repeat in short ranges.
+   */
+  public static byte[] newSample(int size) {
+    byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) {
+      bytes[i] = (byte) (i * 31 + (i >> 8));
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes {@code length} zero bytes to {@code file}.
+   */
+  public static void writeFile(File file, int length) throws IOException {
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(new byte[length]);
+    os.close();
+  }
+
+  /**
+   * Creates files and directories under {@code root}.
+   * Paths ending with {@code /} are directories, others are empty files.
+   * Parent directories are created if needed.
+   */
+  public static void createFiles(File root, String... paths) throws IOException {
+    for (String path : paths) {
+      File file = new File(root, path);
+      if (path.endsWith("/")) {
+        if (!file.mkdirs()) {
+          throw new IOException("Can't create " + file);
+        }
+      } else {
+        File parent = file.getParentFile();
+        if ((!parent.isDirectory() && !parent.mkdirs()) || !file.createNewFile()) {
+          throw new IOException("Can't create " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates {@code width} empty files and {@code width} directories
+   * in {@code dir}, then does it again in each directory until {@code depth}.
+   *
+   * @return the number of files and directories created
+   */
+  public static int createTree(File dir, int width, int depth) throws IOException {
+    return createTree(dir, width, depth, null);
+  }
+
+  /**
+   * Like {@link #createTree(File, int, int)}, but the first file has
+   * {@code length[0]} bytes, and each of the following one byte more.
+   * Files are empty if {@code length} is {@code null}.
+   *
+   * @return the number of files and directories created
+   */
+  public static int createTree(File dir, int width, int depth, int[] length) throws IOException {
+    int count = 0;
+    for (int i = 0; i < width; i++) {
+      File file = new File(dir, "file" + i);
+      if (length != null) {
+        writeFile(file, length[0]++);
+      } else if (!file.createNewFile()) {
+        throw new IOException("Can't create " + file);
+      }
+      count++;
+      if (depth > 0) {
+        File child = new File(dir, "dir" + i);
+        if (!child.mkdir()) {
+          throw new IOException("Can't create " + child);
+        }
+        count++;
+        count += createTree(child, width, depth - 1, length);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Creates a symbolic link with {@code ln -s}.
+   *
+   * @return {@code false} if it isn't supported
+   */
+  public static boolean symlink(File target, File link) throws InterruptedException {
+    try {
+      Process process = new ProcessBuilder("ln", "-s", target.getAbsolutePath(), link.getPath())
+          .start();
+      return process.waitFor() == 0 && link.exists();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Creates a named pipe with {@code mkfifo}.
+   *
+   * @return {@code false} if it isn't supported
+   */
+  public static boolean mkfifo(File file) throws InterruptedException {
+    try {
+      Process process = new ProcessBuilder("mkfifo", file.getPath()).start();
+      return process.waitFor() == 0 && file.exists();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes {@code bytes} to the named pipe {@code fifo} on a new thread.
+   * Opening a named pipe blocks until the other end is opened.
+   */
+  public static Thread writeFifo(final File fifo, final byte[] bytes) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        OutputStream os = null;
+        try {
+          os = new FileOutputStream(fifo);
+          os.write(bytes);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        } finally {
+          IOUtils.closeQuietly(os);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
 }